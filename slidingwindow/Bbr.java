@@ -0,0 +1,128 @@
+package slidingwindow;
+import java.util.concurrent.*;
+/**
+ * The Bbr class is delay based congestion control in the manner of BBR.
+ * Rather than waiting for loss, it estimates the bottleneck bandwidth as
+ * the most frames delivered per round trip lately, and the path delay as
+ * the least round trip time seen lately, and keeps their product - the
+ * frames the path holds without queueing - in flight.  Until bandwidth
+ * stops growing the window doubles every round trip to find it.
+ */
+public class Bbr implements CongestionControl {
+	static final int MIN_WINDOW = 4; //Frames
+	static final int CWND_GAIN = 2; //Window is twice the estimated path
+	static final int BW_ROUNDS = 10; //Round trips bandwidth is kept for
+	//Round trip time is kept this long unless a lower one is seen
+	static final long MIN_RTT_EXPIRES = TimeUnit.SECONDS.toNanos(10);
+	//Startup ends when bandwidth has grown less than 25% for 3 rounds
+	static final double STARTUP_GROWTH = 1.25;
+	static final int STARTUP_ROUNDS = 3;
+	private int window = Bbr.MIN_WINDOW;
+	private boolean startup = true;
+	private long minRtt = Long.MAX_VALUE; //ns
+	private long minRttTime = 0; //When minRtt was measured
+	//Frames per ns delivered in each of the last rounds
+	private final double[] bandwidth = new double[Bbr.BW_ROUNDS];
+	private long round = 0; //Round trips counted so far
+	private long delivered = 0; //Frames acked so far
+	private long roundEnd = 0; //Round ends when delivered reaches this
+	private long roundDelivered = 0; //delivered when round started
+	private long roundStart = System.nanoTime();
+	private double fullBandwidth = 0; //Best bandwidth during startup
+	private int flatRounds = 0; //Startup rounds without enough growth
+	/**
+	 * Get the number of frames which may be sent and not yet acked
+	 * @return int
+	 * 	The congestion window in frames
+	 */
+	@Override
+	public int getWindow(){
+		return this.window;
+	}
+	/**
+	 * Update path model and set window from it
+	 */
+	@Override
+	public void onAck(int frames, long rtt, int inFlight){
+		long now = System.nanoTime();
+		if (rtt > 0 && (rtt <= this.minRtt || 
+				now - this.minRttTime > Bbr.MIN_RTT_EXPIRES)){
+			this.minRtt = rtt;
+			this.minRttTime = now;
+		}
+		this.delivered += frames;
+		if (this.delivered >= this.roundEnd)
+			endRound(now, inFlight);
+		if (this.startup)
+			this.window += frames; //Double each round trip
+		else
+			this.window = modelWindow();
+	}
+	/**
+	 * Fall back to one frame until the next ack.  Loss is not taken as a
+	 * sign of congestion, so the model sets the window again after that.
+	 */
+	@Override
+	public void onTimeout(int inFlight){
+		this.window = 1;
+	}
+	/**
+	 * Keep window - a single loss says nothing about the path model
+	 */
+	@Override
+	public void onFastRetransmit(int inFlight){
+	}
+	/**
+	 * Get the estimated bottleneck bandwidth
+	 * @return double
+	 * 	The frames delivered per second
+	 */
+	public double getBandwidth(){
+		return maxBandwidth() * TimeUnit.SECONDS.toNanos(1);
+	}
+	/**
+	 * Get the least round trip time measured lately
+	 * @return long
+	 * 	The round trip time in nanoseconds, or Long.MAX_VALUE until
+	 * 	first measured
+	 */
+	public long getMinRtt(){
+		return this.minRtt;
+	}
+	//Record bandwidth of the round just ended and start the next
+	private void endRound(long now, int inFlight){
+		long elapsed = now - this.roundStart;
+		if (elapsed > 0){
+			this.bandwidth[(int)(this.round % Bbr.BW_ROUNDS)] =
+				(double)(this.delivered - this.roundDelivered) / elapsed;
+			this.round++;
+		}
+		this.roundStart = now;
+		this.roundDelivered = this.delivered;
+		//Round trip is over when frames now in flight are acked
+		this.roundEnd = this.delivered + Math.max(1, inFlight);
+		if (!this.startup)
+			return;
+		double bw = maxBandwidth();
+		if (bw >= this.fullBandwidth * Bbr.STARTUP_GROWTH){
+			this.fullBandwidth = bw;
+			this.flatRounds = 0;
+		} else if (++this.flatRounds >= Bbr.STARTUP_ROUNDS)
+			this.startup = false; //Found the bottleneck
+	}
+	//Window which keeps the estimated path full
+	private int modelWindow(){
+		if (this.minRtt == Long.MAX_VALUE)
+			return Math.max(Bbr.MIN_WINDOW, this.window);
+		double bdp = maxBandwidth() * this.minRtt;
+		return Math.max(Bbr.MIN_WINDOW, 
+				(int)Math.ceil(Bbr.CWND_GAIN * bdp));
+	}
+	//Highest bandwidth over the last BW_ROUNDS rounds
+	private double maxBandwidth(){
+		double max = 0;
+		for (double bw : this.bandwidth)
+			max = Math.max(max, bw);
+		return max;
+	}
+}
@@ -0,0 +1,258 @@
+package slidingwindow;
+import java.io.*;
+import java.util.*;
+/**
+ * The Benchmark class measures goodput between two Sockets in this JVM.
+ * Each run sends the same bytes through the network PhysicalLayer
+ * impairs, and is timed until the receiver has read them all.  Frames go
+ * over UDP to localhost by default, or over the in-memory loopback or
+ * shared memory.  Each test prints a table of KB/s:
+ * <ul>
+ * <li>-t 0 - at each % of frames dropped, with and without forward error
+ * correction
+ * <li>-t 1 - with no congestion control, NewReno and Bbr, at each % of
+ * frames dropped and then at each % delayed by up to a round trip
+ * <li>-t 2 - the most data frames per second sent unpaced, then token
+ * bucket paced at 10, 100 and 1000 Mbit/s.  Each row is the best of
+ * several rounds which run every row in turn, each starting from the
+ * next row, so no row is favored by warm up or by running first.  Unless
+ * set, latency is 0 and frames go over the in-memory loopback.
+ * </ul>
+ * Usage: java slidingwindow.Benchmark [-t test] [-n bytes] [-l ms]
+ * [-w window] [-p packet size] [-r 0|1] [-m 0|1|2]
+ */
+public class Benchmark {
+	public final static int PORT = 49160; //First of one port per run
+	private final static int[] PCTS_TO_DROP = {0, 1, 2, 5, 10, 15, 20};
+	private final static int[] PCTS_TO_DELAY = {5, 10, 20, 40};
+	private final static String[] TESTS =
+			{"FEC", "congestion control", "pacing"};
+	//Token bucket rates compared with unpaced sends, in bits per second
+	private final static long[] PACING_RATES =
+			{10000000L, 100000000L, 1000000000L};
+	private final static int PACING_ROUNDS = 5; //Runs of each pacing row
+	private final static String[] CONTROLLERS = {"none", "NewReno", "Bbr"};
+	private static int test = 0; //Index into TESTS
+	private static int bytes = 1 << 20; //Bytes sent per run
+	private static int latency = -1; //One way, in ms - -1 for test default
+	private static DataLink.Protocol protocol = DataLink.Protocol.GO_BACK_N;
+	private static int port = Benchmark.PORT;
+	private final static String[] MEDIA =
+			{"UDP", "loopback", "shared memory"};
+	private static int medium = -1; //Index into MEDIA - -1 for test default
+	/**
+	 * Program entry point - sends the same bytes over a local connection
+	 * under each impairment and prints the goodput of each run, with and
+	 * without forward error correction or with each congestion control.
+	 */
+	public static void main(String[] args){
+		try {
+			if (args.length > 0) //Get optional arguments and apply settings
+				parseArgs(args);
+			//Pacing is measured at the most frames the stack can send, so
+			//without network latency or the kernel's UDP stack by default
+			boolean pacing = (Benchmark.test == 2);
+			if (Benchmark.latency < 0)
+				Benchmark.latency = pacing ? 0 : 10;
+			if (Benchmark.medium < 0)
+				Benchmark.medium = pacing ? 1 : 0;
+			PhysicalLayer.setPacing(PhysicalLayer.Pacing.NONE);
+			DataLink.setTimeout(300); //First frames go before RTT is known
+			PhysicalLayer.getImpairment().setLatency(Benchmark.latency, 0,
+					Impairment.Jitter.UNIFORM);
+
+			PrintStream console = System.out;
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+			console.printf("%s: %d KB, %d ms latency, window %d, %s over %s%n",
+					Benchmark.TESTS[Benchmark.test], Benchmark.bytes / 1024,
+					Benchmark.latency, PhysicalLayer.getWindowSize(),
+					Benchmark.protocol, Benchmark.MEDIA[Benchmark.medium]);
+			//Untimed, so the first row is not paying for warm up
+			run(0, 0, false, 0);
+			if (Benchmark.test == 0)
+				compareFec(console);
+			else if (Benchmark.test == 1)
+				compareControllers(console);
+			else
+				comparePacing(console);
+			System.exit(0); //Connections linger for late frames
+		} catch (IllegalArgumentException iae){
+			System.out.println("Options:\n\t-n\tBytes per run\n\t" +
+				"-l\tLatency (ms)\n\t-w\tWindow size\n\t" +
+				"-p\tPacket size (bytes)\n\t-r\tSelective repeat (0/1)\n\t" +
+				"-m\tUDP (0), in-memory loopback (1) or shared memory (2)\n\t" +
+				"-t\tCompare FEC (0), congestion control (1) or pacing (2)");
+		} catch (IOException ioe){
+			ioe.printStackTrace();
+		}
+	}
+	//Print goodput at each % of frames to drop, with and without forward
+	//error correction
+	private static void compareFec(PrintStream console) throws IOException {
+		console.printf("%8s %14s %14s%n", "% drop", "KB/s", "KB/s FEC");
+		for (int pctToDrop : Benchmark.PCTS_TO_DROP){
+			double plain = run(pctToDrop, 0, false, 0);
+			double fec = run(pctToDrop, 0, true, 0);
+			console.printf("%8d %14.1f %14.1f%n", pctToDrop, plain, fec);
+		}
+	}
+	//Print goodput with each congestion control at each % of frames to
+	//drop, then at each % of frames to delay by up to a round trip
+	private static void compareControllers(PrintStream console)
+			throws IOException {
+		console.printf("%8s", "% drop");
+		for (String name : Benchmark.CONTROLLERS)
+			console.printf(" %14s", "KB/s " + name);
+		console.println();
+		for (int pctToDrop : Benchmark.PCTS_TO_DROP){
+			console.printf("%8d", pctToDrop);
+			for (int i = 0; i < Benchmark.CONTROLLERS.length; i++)
+				console.printf(" %14.1f", run(pctToDrop, 0, false, i));
+			console.println();
+		}
+		console.printf("%8s%n", "% delay");
+		for (int pctToDelay : Benchmark.PCTS_TO_DELAY){
+			console.printf("%8d", pctToDelay);
+			for (int i = 0; i < Benchmark.CONTROLLERS.length; i++)
+				console.printf(" %14.1f", run(0, pctToDelay, false, i));
+			console.println();
+		}
+	}
+	//Print data frames and KB/s sent unpaced, then token bucket paced at
+	//each rate - the best of interleaved rounds, each round starting one
+	//row later
+	private static void comparePacing(PrintStream console)
+			throws IOException {
+		int frames = (Benchmark.bytes + Socket.getPacketSize() - 1)
+				/ Socket.getPacketSize();
+		int rows = Benchmark.PACING_RATES.length + 1; //Row 0 unpaced
+		double[] best = new double[rows];
+		for (int round = 0; round < Benchmark.PACING_ROUNDS; round++)
+			for (int n = 0; n < rows; n++){
+				int row = (round + n) % rows;
+				if (row == 0)
+					PhysicalLayer.setPacing(PhysicalLayer.Pacing.NONE);
+				else {
+					PhysicalLayer.setPacing(PhysicalLayer.Pacing.TOKEN_BUCKET);
+					PhysicalLayer.setPacingRate(
+							Benchmark.PACING_RATES[row - 1]);
+				}
+				best[row] = Math.max(best[row], run(0, 0, false, 0));
+			}
+		PhysicalLayer.setPacing(PhysicalLayer.Pacing.NONE);
+		console.printf("%14s %14s %14s%n", "Pacing", "Frames/s", "KB/s");
+		for (int row = 0; row < rows; row++){
+			String name = (row == 0) ? "none"
+					: (Benchmark.PACING_RATES[row - 1] / 1000000) + " Mbit/s";
+			double seconds = (Benchmark.bytes / 1024.0) / best[row];
+			console.printf("%14s %14.0f %14.1f%n", name, frames / seconds,
+					best[row]);
+		}
+	}
+	//Get a new instance of a congestion control, or null for none
+	private static CongestionControl controller(int index){
+		switch (index){
+			case 1:
+				return new NewReno();
+			case 2:
+				return new Bbr();
+			default:
+				return null;
+		}
+	}
+	//Send bytes to a server on a new port or shared memory name, or to the
+	//other end of a loopback pair, and return goodput in KB/s, timed until
+	//the server has read them all
+	private static double run(int pctToDrop, int pctToDelay, boolean fec,
+			int controller) throws IOException {
+		PhysicalLayer.setPctToDrop(pctToDrop);
+		PhysicalLayer.getImpairment().setDelay(pctToDelay,
+				Math.max(1, 2 * Benchmark.latency));
+		//Same losses each way
+		PhysicalLayer.getImpairment().setSeed(pctToDrop + 100 * pctToDelay);
+		DataLink.setForwardErrorCorrection(fec);
+		int port = Benchmark.port++;
+		String name = "benchmark-" + port;
+		Socket[] ends = (Benchmark.medium == 1) ? Socket.pair() : null;
+		ServerSocket server = (Benchmark.medium == 0)
+				? new ServerSocket(port)
+				: null;
+		long[] received = new long[1];
+		Thread reader = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try {
+					Socket socket = (ends != null) ? ends[1]
+							: (server != null) ? server.accept()
+							: Socket.acceptShared(name);
+					socket.setProtocol(Benchmark.protocol);
+					socket.setCongestionControl(controller(controller));
+					InputStream in = socket.getInputStream();
+					byte[] b = new byte[8192];
+					for (int n = in.read(b); n >= 0; n = in.read(b))
+						received[0] += n;
+				} catch (IOException ioe){
+					ioe.printStackTrace();
+				}
+			}
+		});
+		reader.start();
+
+		byte[] data = new byte[Benchmark.bytes];
+		new Random(1).nextBytes(data);
+		long start = System.nanoTime();
+		Socket socket = (ends != null) ? ends[0]
+				: (server != null) ? new Socket("localhost", port)
+				: Socket.connectShared(name);
+		socket.setProtocol(Benchmark.protocol);
+		socket.setCongestionControl(controller(controller));
+		OutputStream out = socket.getOutputStream();
+		out.write(data);
+		socket.close(); //Flushes, then sends EOF which ends the reader
+		try {
+			reader.join();
+		} catch (InterruptedException ie){
+			throw new InterruptedIOException();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (server != null)
+			server.close();
+		if (received[0] != Benchmark.bytes)
+			throw new IOException("Received " + received[0] + " of " +
+					Benchmark.bytes + " bytes");
+		return (Benchmark.bytes / 1024.0) / (elapsed / 1e9);
+	}
+	//Parse arguments from user and update program settings
+	private static void parseArgs(String[] args)
+			throws IllegalArgumentException {
+		if (args.length % 2 == 1)
+			throw new IllegalArgumentException();
+
+		for (int i = 0; i < (args.length - 1); i += 2){
+			int val;
+			try {
+				val = Integer.parseInt(args[i+1]);
+			} catch (NumberFormatException nfe){
+				throw new IllegalArgumentException();
+			}
+			if (args[i].equals("-n") && val > 0)
+				Benchmark.bytes = val;
+			else if (args[i].equals("-l") && val >= 0)
+				Benchmark.latency = val;
+			else if (args[i].equals("-w"))
+				PhysicalLayer.setWindowSize(val);
+			else if (args[i].equals("-p"))
+				Socket.setPacketSize(val);
+			else if (args[i].equals("-m") && val >= 0 && val < MEDIA.length)
+				Benchmark.medium = val;
+			else if (args[i].equals("-t") && val >= 0 && val < TESTS.length)
+				Benchmark.test = val;
+			else if (args[i].equals("-r"))
+				Benchmark.protocol = (val == 0)
+						? DataLink.Protocol.GO_BACK_N
+						: DataLink.Protocol.SELECTIVE_REPEAT;
+			else
+				throw new IllegalArgumentException();
+		}
+	}
+}
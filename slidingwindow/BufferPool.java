@@ -0,0 +1,71 @@
+package slidingwindow;
+import java.util.*;
+/**
+ * The BufferPool class keeps heap buffers for frames and packets so a
+ * steady transfer reuses the same few arrays instead of allocating one per
+ * frame.  Buffers come in power of 2 size classes up to the largest
+ * datagram.  Each is handed out inside a Packet whose reference count
+ * returns it here when the last holder releases it.  A class keeps a
+ * limited number of free buffers, and extras are left to the collector.
+ */
+class BufferPool {
+	private static final int MIN_SHIFT = 6; //64 byte smallest class
+	private static final int MAX_SHIFT = 32 -
+			Integer.numberOfLeadingZeros(PhysicalLayer.MAX_PACKET_SIZE - 1);
+	//Free buffers kept per class, at most this many bytes
+	private static final int MAX_FREE_BYTES = 16 << 20;
+	private static final BufferPool shared = new BufferPool();
+	//Free packets by size class, each guarded by its own lock
+	private final List<Deque<Packet>> free;
+
+	/**
+	 * Get the pool shared by every connection in this JVM
+	 * @return BufferPool
+	 * 	The shared pool
+	 */
+	static BufferPool getShared(){
+		return BufferPool.shared;
+	}
+	//Create an empty pool
+	BufferPool(){
+		this.free = new ArrayList<Deque<Packet>>(MAX_SHIFT - MIN_SHIFT + 1);
+		for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++)
+			this.free.add(new ArrayDeque<Packet>());
+	}
+	/**
+	 * Get a packet backed by a pooled buffer.  Its reference count is 1.
+	 * @param int size
+	 * 	The bytes needed, up to PhysicalLayer.MAX_PACKET_SIZE
+	 * @return Packet
+	 * 	A packet of the given length at offset 0, whose buffer() may hold
+	 * 	more bytes than asked for
+	 */
+	Packet acquire(int size){
+		if (size < 0 || size > PhysicalLayer.MAX_PACKET_SIZE)
+			throw new IllegalArgumentException("Illegal size: " + size);
+		int index = sizeClass(size);
+		Deque<Packet> list = this.free.get(index);
+		Packet p;
+		synchronized(list){
+			p = list.poll();
+		}
+		if (p == null)
+			p = new Packet(this, 1 << (index + MIN_SHIFT));
+		p.reuse(size);
+		return p;
+	}
+	//Take back a packet whose last reference was released
+	void release(Packet p){
+		int index = sizeClass(p.capacity());
+		Deque<Packet> list = this.free.get(index);
+		synchronized(list){
+			if (list.size() < (MAX_FREE_BYTES >> (index + MIN_SHIFT)))
+				list.push(p); //Most recently used is reused first
+		}
+	}
+	//Get index of smallest class holding size bytes
+	private static int sizeClass(int size){
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1));
+		return Math.max(MIN_SHIFT, shift) - MIN_SHIFT;
+	}
+}
@@ -0,0 +1,89 @@
+package slidingwindow;
+import java.nio.*;
+/**
+ * The Checksum class computes the 16 bit ones' complement checksum carried
+ * in every frame.  Frames are summed in place a long at a time as little
+ * endian 16 bit words, and a checksum can be patched when a header field
+ * changes without summing the payload again.
+ */
+final class Checksum {
+	private Checksum(){} //Static methods only
+
+	/**
+	 * Calculate the checksum of a range of a buffer.  A frame whose stored
+	 * checksum is correct sums to a checksum of 0.
+	 * @param ByteBuffer data
+	 * 	The buffer holding the bytes, which is not modified
+	 * @param int index
+	 * 	The absolute index of the first byte
+	 * @param int length
+	 * 	The number of bytes to sum
+	 * @return short
+	 * 	The negated ones' complement sum
+	 */
+	static short calculate(ByteBuffer data, int index, int length){
+		return (short)~fold(sum(data, index, length));
+	}
+	/**
+	 * Patch a checksum after a 16 bit word at an even offset changes
+	 * @param short checksum
+	 * 	The checksum before the change
+	 * @param short oldWord
+	 * 	The word before the change
+	 * @param short newWord
+	 * 	The word after the change
+	 * @return short
+	 * 	The checksum of the changed data
+	 */
+	static short update(short checksum, short oldWord, short newWord){
+		//~C' = ~C + ~m + m' (RFC 1624)
+		long sum = (~checksum & 0xffff) + (~oldWord & 0xffff)
+				+ (newWord & 0xffff);
+		return (short)~fold(sum);
+	}
+	/**
+	 * Patch a checksum after a 32 bit field at an even offset changes
+	 * @param short checksum
+	 * 	The checksum before the change
+	 * @param int oldValue
+	 * 	The little endian field before the change
+	 * @param int newValue
+	 * 	The little endian field after the change
+	 * @return short
+	 * 	The checksum of the changed data
+	 */
+	static short update(short checksum, int oldValue, int newValue){
+		checksum = update(checksum, (short)oldValue, (short)newValue);
+		return update(checksum,
+				(short)(oldValue >>> 16), (short)(newValue >>> 16));
+	}
+	//Add up bytes as little endian words without folding carries
+	private static long sum(ByteBuffer data, int index, int length){
+		boolean swap = (data.order() != ByteOrder.LITTLE_ENDIAN);
+		long sum = 0;
+		int i = index;
+		int end = index + length;
+		//Each long adds two 32 bit halves - carries fold in at the end
+		for (; i + Long.BYTES <= end; i += Long.BYTES){
+			long value = data.getLong(i);
+			if (swap)
+				value = Long.reverseBytes(value);
+			sum += (value & 0xffffffffL) + (value >>> Integer.SIZE);
+		}
+		for (; i + Short.BYTES <= end; i += Short.BYTES){
+			short value = data.getShort(i);
+			if (swap)
+				value = Short.reverseBytes(value);
+			sum += value & 0xffff;
+		}
+		if (i < end) //Odd byte is the low half of a final word
+			sum += data.get(i) & 0xff;
+		return sum;
+	}
+	//Add carries back into low 16 bits until none remain
+	private static int fold(long sum){
+		while ((sum >>> Short.SIZE) != 0)
+			sum = (sum & 0xffff) + (sum >>> Short.SIZE);
+		return (int)sum;
+	}
+}
@@ -0,0 +1,176 @@
+package slidingwindow;
+import java.nio.*;
+import java.util.*;
+/**
+ * The ChecksumCheck class proves Checksum is wire compatible with the
+ * bit-array algorithm frames were first sealed with.  It checks a table
+ * of golden vectors, then random and all-ones buffers of odd and even
+ * length, heap and direct, in either byte order, against that algorithm
+ * kept here as the reference.  It then checks that patching a checksum
+ * with update() matches summing the changed bytes again.  Prints each
+ * check and exits with 1 if any failed.
+ */
+public class ChecksumCheck {
+	private final static int RANDOM_BUFFERS = 20000;
+	private final static int MAX_LENGTH = 1100; //Past a full data frame
+	//Input pattern and length, and checksum the reference gives
+	private final static int[][] GOLDEN = {
+		//{fill byte or -1 for counting up, length, checksum}
+		{0x00, 0, 0xffff},
+		{0x00, 1, 0xffff},
+		{0x01, 1, 0xfffe},
+		{0xff, 1, 0xff00},
+		{0xff, 2, 0x0000},
+		{-1, 2, 0xfeff},
+		{-1, 7, 0xf6f3},
+		{-1, 8, 0xeff3},
+		{-1, 12, 0xdbe1},
+		{0xff, 1036, 0x0000},
+		{-1, 1036, 0xdce0},
+		{0xa5, 65507, 0xe13c}
+	};
+	private static int failures = 0;
+
+	/**
+	 * Program entry point - runs every check and reports the result
+	 */
+	public static void main(String[] args){
+		checkGolden();
+		checkRandom();
+		checkUpdate();
+		System.out.println(failures == 0 ? "All checks passed"
+				: failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+	//Compare fixed inputs with checksums taken from the reference
+	private static void checkGolden(){
+		int before = failures;
+		for (int[] g : GOLDEN){
+			ByteBuffer data = fill(ByteBuffer.allocate(g[1]), g[0]);
+			expect("golden " + g[0] + "x" + g[1], (short)g[2],
+					Checksum.calculate(data, 0, g[1]));
+			expect("reference " + g[0] + "x" + g[1], (short)g[2],
+					reference(data, 0, g[1]));
+		}
+		report("Golden vectors", GOLDEN.length, before);
+	}
+	//Compare random buffers in each kind of storage with the reference
+	private static void checkRandom(){
+		int before = failures;
+		Random random = new Random(1);
+		for (int n = 0; n < RANDOM_BUFFERS; n++){
+			int length = random.nextInt(MAX_LENGTH + 1);
+			int index = random.nextInt(8); //Sum need not start aligned
+			ByteBuffer data = (n % 2 == 0)
+					? ByteBuffer.allocate(index + length)
+					: ByteBuffer.allocateDirect(index + length);
+			data.order((n % 4 < 2) ? ByteOrder.LITTLE_ENDIAN
+					: ByteOrder.BIG_ENDIAN);
+			if (n % 10 == 0) //All ones carries the most
+				fill(data, 0xff);
+			else
+				for (int i = 0; i < data.capacity(); i++)
+					data.put(i, (byte)random.nextInt());
+			expect("random " + n, reference(data, index, length),
+					Checksum.calculate(data, index, length));
+		}
+		report("Random buffers", RANDOM_BUFFERS, before);
+	}
+	//Change a 16 and a 32 bit field at even offsets and compare the
+	//patched checksum with a full sum
+	private static void checkUpdate(){
+		int before = failures;
+		Random random = new Random(2);
+		for (int n = 0; n < RANDOM_BUFFERS; n++){
+			int length = 8 + 2 * random.nextInt(MAX_LENGTH / 2);
+			ByteBuffer data = ByteBuffer.allocate(length)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < length; i++)
+				data.put(i, (byte)random.nextInt());
+			short checksum = Checksum.calculate(data, 0, length);
+
+			int at = 2 * random.nextInt(length / 2);
+			short oldWord = data.getShort(at);
+			short newWord = (short)random.nextInt();
+			data.putShort(at, newWord);
+			checksum = Checksum.update(checksum, oldWord, newWord);
+			expect("update word " + n,
+					Checksum.calculate(data, 0, length), checksum);
+
+			at = 2 * random.nextInt(length / 2 - 1);
+			int oldValue = data.getInt(at);
+			int newValue = random.nextInt();
+			data.putInt(at, newValue);
+			checksum = Checksum.update(checksum, oldValue, newValue);
+			expect("update int " + n,
+					Checksum.calculate(data, 0, length), checksum);
+		}
+		report("Incremental updates", 2 * RANDOM_BUFFERS, before);
+	}
+	//Fill buffer with one byte, or with 0, 1, 2... for -1
+	private static ByteBuffer fill(ByteBuffer data, int value){
+		for (int i = 0; i < data.capacity(); i++)
+			data.put(i, (byte)((value < 0) ? i : value));
+		return data;
+	}
+	//Count a failure if the checksums differ
+	private static void expect(String name, short expected, short actual){
+		if (expected == actual)
+			return;
+		if (failures++ < 10)
+			System.out.printf("FAIL %s: expected %04x, got %04x%n", name,
+					expected & 0xffff, actual & 0xffff);
+	}
+	//Print the result of one group of checks
+	private static void report(String name, int count, int before){
+		System.out.printf("%-20s %6d checked, %s%n", name, count,
+				(failures == before) ? "ok" : "FAILED");
+	}
+	//The algorithm frames were sealed with before Checksum - counts each
+	//bit of each little endian word into its own slot and propagates
+	//carries.  Its carry slot is widened by one, as the original indexed
+	//past the end of its array when a sum carried out of 16 bits.
+	private static short reference(ByteBuffer data, int index, int len){
+		int[] values = new int[Integer.SIZE + 1];
+
+		//Accumulate all 16 bit values into int array
+		int offset = 0;
+		for (int n = 0; n < len; n++){
+			byte b = data.get(index + n);
+			for (int i = 0; i < Byte.SIZE; i++){
+				int val = (int)Math.pow(2,i);
+				values[i + offset] += ((b & val) > 0 ? 1 : 0);
+			}
+			offset = Math.abs(-Byte.SIZE + offset);
+		}
+		//Propagate sums into higher bit slots
+		boolean overflow;
+		do {
+			for (int i = 0; i < Short.SIZE; i++){
+				values[i+1] += values[i] / 2;
+				values[i] %= 2;
+			}
+			overflow = (values[Short.SIZE] > 0);
+			if (overflow){ //Slot 15 carried into slot 16
+				//Continue to propagate up to 31
+				for (int i = Short.SIZE; i < Integer.SIZE; i++){
+					values[i+1] += values[i] / 2;
+					values[i] %= 2;
+				}
+				//Add upper 16 bits back into lower 16
+				for (int i = Short.SIZE; i < Integer.SIZE; i++){
+					values[i - Short.SIZE] += values[i];
+					values[i] = 0;
+				}
+			}
+		} while (overflow == true); //Do until no overflow
+
+		//Negate 16 bit result and return
+		short output = 0;
+		for (int i = 0; i < Short.SIZE; i++)
+			if (values[i] == 0)
+				output |= (int)Math.pow(2, i);
+
+		return output;
+	}
+}
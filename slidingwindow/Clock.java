@@ -1,154 +1,141 @@
 package slidingwindow;
-import java.util.*;
-import java.io.*;
-import slidingwindow.Frame.FrameKind;
 /**
  * The Clock class manages timers for instances of DataLink and its
- * frame coordination with sliding window protocol.
+ * frame coordination with sliding window protocol.  Timers are kept on
+ * the TimerWheel shared by all DataLinks rather than a thread per Clock.
  */
-class Clock implements Runnable {
-	private Thread thread;  //Runs Clock and waits down all timers
-	//All Timers sorted by expiration
-	private SortedSet<Timer> timers = new TreeSet<Timer>(); 
-	//All Timers with seq number lookup
-	private Map<Integer, Timer> timerMap = new HashMap<Integer, Timer>();
+class Clock {
+	private final TimerWheel wheel; //Counts down timers for all Clocks
+	//Frame timers by window slot - seqno modulo a power of 2 at least the
+	//window, so no two frames in flight share one.  Each slot keeps its
+	//timer once made, and running marks whether it is armed.
+	private final TimerWheel.Timeout[] timers;
+	private final boolean[] running;
+	private final int mask;
+	//Ack timer - kept apart from frame timers as any int can be a seqno
+	private final TimerWheel.Timeout ackTimer = new TimerWheel.Timeout(this, 0);
+	private boolean ackRunning = false;
+	//Coalesce timer - limits how long flushed bytes are held
+	private final TimerWheel.Timeout coalesceTimer = 
+			new TimerWheel.Timeout(this, 0);
+	private boolean coalesceRunning = false;
 	private DataLink dataLink; //Notify when timers expire
-	private volatile boolean active = true;
-	private volatile long wakeup; //ms until next timer expires
-	
-	//Creates a new Clock which notifies dataLink when events occur
-	Clock(DataLink dataLink){
-		this.dataLink = dataLink;
-	}
-	/**
-	 * Run a thread to countdown active timers and notify DataLink
-	 * when events occur
-	 */
-	@Override
-	public void run(){
-		Timer next;
-		synchronized(this.timers){
-			if (this.timers.size() == 0)
-				return; //Stop if no timers registered
-			next = this.timers.first();
-		}
-		if (next.timeRemaining() > 0)
-			try { 
-				//Track thread wakeup time in case ack timer supercedes
-				wakeup = next.timeRemaining() + System.currentTimeMillis();
-				//Sleep until next timer expires	
-				Thread.sleep(next.timeRemaining());
-			} catch (InterruptedException ie){
-				//Thread may be interrupted by a shorter timer
-				//Restart method when that happens
-				if (this.activeTimerCount() > 0)
-					this.run();
-				return; //Else dataLink has called end()
-			}
+	private boolean active = true;
 
-		List<Timer> ready = new LinkedList<Timer>();
-		synchronized(this.timers){
-			Iterator<Timer> i = this.timers.iterator();
-			while (i.hasNext()){ //Iterate through registered timers
-				Timer t = i.next();
-				if (t.expired()){
-					i.remove(); //remove all expired ones
-					if (!t.canceled) 
-						ready.add(t); //Keep collection of non-canceled
-					
-				} else //Timers are sorted so no more are expired
-					continue;
-			}
-		}
-		
-		//Notify DataLink of expired timers and remove from mapping
-		for (Timer t : ready){
-			this.dataLink.timeout(t.seqno);
-			
-			synchronized(this.timerMap){
-				timerMap.remove(t.seqno);
-			}
-		}
-		//If any timers remain, start again	
-		if (activeTimerCount() > 0)
-			this.run();
+	//Creates a new Clock which notifies dataLink when events occur, for
+	//up to window frames in flight
+	Clock(DataLink dataLink, int window){
+		this(dataLink, TimerWheel.getShared(), window);
 	}
-	//Start a timer with the given sequence number and duration
-	void startTimer(int seqno, int duration){
-		stopTimer(seqno); //Stop timer if it's already running and start over
-
-		long expiration = System.currentTimeMillis() + duration; 
-		Timer t = new Timer(seqno, expiration);
-		synchronized(this.timerMap){
-			this.timerMap.put(seqno, t);
+	//Creates a new Clock on the given wheel
+	Clock(DataLink dataLink, TimerWheel wheel, int window){
+		this.dataLink = dataLink;
+		this.wheel = wheel;
+		int slots = Integer.highestOneBit(Math.max(1, window) * 2 - 1);
+		this.timers = new TimerWheel.Timeout[slots];
+		this.running = new boolean[slots];
+		this.mask = slots - 1;
+	}
+	//Start a timer with the given sequence number and duration in ns
+	synchronized void startTimer(int seqno, long nanos){
+		if (!this.active)
+			return; //Clock has been ended
+		int slot = seqno & this.mask;
+		TimerWheel.Timeout t = this.timers[slot];
+		if (t == null){ //First use of slot
+			t = new TimerWheel.Timeout(this, seqno);
+			this.timers[slot] = t;
 		}
-		addTimer(t);
+		//Frames a window apart share a slot, so one of them has been acked
+		//and its timer is stale - a resend may start it after the newer
+		//frame's, which must keep the slot
+		if (this.running[slot] && t.seqno - seqno > 0)
+			return;
+		t.seqno = seqno;
+		this.running[slot] = true;
+		this.wheel.schedule(t, System.nanoTime() + nanos);
 	}
 	//Stop timer with the given sequence number
-	void stopTimer(int seqno){
-		Timer t;
-		//Ok to remove from map
-		synchronized(this.timerMap){
-			t = this.timerMap.get(seqno);
-			this.timerMap.remove(seqno);
+	synchronized void stopTimer(int seqno){
+		int slot = seqno & this.mask;
+		TimerWheel.Timeout t = this.timers[slot];
+		if (t != null && this.running[slot] && t.seqno == seqno){
+			this.running[slot] = false;
+			this.wheel.cancel(t);
 		}
-		//Clock thread using timers set so logically cancel timer
-		if (t != null) 
-			t.canceled = true;
 	}
-	//Register timer with Clock
-	private void addTimer(Timer t){
-		int timerCount;
+	//Start ack timer with the given duration in ns, starting it over if
+	//it is running
+	synchronized void startAckTimer(long nanos){
+		if (!this.active)
+			return; //Clock has been ended
+		this.ackRunning = true;
+		this.wheel.schedule(this.ackTimer, System.nanoTime() + nanos);
+	}
+	//Stop ack timer
+	synchronized void stopAckTimer(){
+		this.ackRunning = false;
+		this.wheel.cancel(this.ackTimer);
+	}
+	//Start coalesce timer with the given duration in ns, starting it over
+	//if it is running
+	synchronized void startCoalesceTimer(long nanos){
 		if (!this.active)
 			return; //Clock has been ended
-		synchronized(this.timers){
-			this.timers.add(t);	 
+		this.coalesceRunning = true;
+		this.wheel.schedule(this.coalesceTimer, System.nanoTime() + nanos);
+	}
+	//Stop coalesce timer
+	synchronized void stopCoalesceTimer(){
+		this.coalesceRunning = false;
+		this.wheel.cancel(this.coalesceTimer);
+	}
+	//Called by wheel when a timer comes due
+	void expire(TimerWheel.Timeout t){
+		if (t == this.ackTimer){
+			synchronized(this){ //Ignore if stopped or restarted meanwhile
+				if (!this.active || !t.expired || !this.ackRunning)
+					return;
+				t.expired = false;
+				this.ackRunning = false;
+			}
+			this.dataLink.ackTimeout();
+			return;
 		}
-
-		if (this.activeTimerCount() == 1){
-			this.thread = new Thread(this);
-			this.thread.start(); //No other timers are active yet
-		} else if (t.expiration < this.wakeup){
-			this.thread.interrupt(); //New timer supercedes wakeup
+		if (t == this.coalesceTimer){
+			synchronized(this){
+				if (!this.active || !t.expired || !this.coalesceRunning)
+					return;
+				t.expired = false;
+				this.coalesceRunning = false;
+			}
+			this.dataLink.coalesceTimeout();
+			return;
 		}
+		int seqno;
+		synchronized(this){
+			//Ignore if stopped or restarted since wheel found it due
+			int slot = t.seqno & this.mask;
+			if (!this.active || !t.expired || !this.running[slot])
+				return;
+			t.expired = false;
+			seqno = t.seqno;
+			this.running[slot] = false;
+		}
+		this.dataLink.timeout(seqno); //Notify outside lock
 	}
 
 	//DataLink is done
-	void end(){
+	synchronized void end(){
 		this.active = false;
-		try {
-			this.thread.interrupt();
-			this.thread.join();
-		} catch (InterruptedException ie){
-			ie.printStackTrace();
-		}
-	}
-	//Data timers and ack timers - only one ack at a time
-	class Timer implements Comparable<Timer> {
-		private Integer seqno;
-		private volatile long expiration;
-		volatile boolean canceled = false;
-		Timer(int seqno, long expiration){
-			this.seqno = seqno;
-			this.expiration = expiration;
-		}
-		long timeRemaining(){
-			return expiration - System.currentTimeMillis();
-		}
-		boolean expired(){
-			return timeRemaining() <= 0;
-		}
-		//Clock sorts timers by expiration so it can wake up for the next one
-		@Override
-		public int compareTo(Timer t){
-			return Long.compare(this.expiration, t.expiration);
-		}
+		this.ackRunning = false;
+		this.wheel.cancel(this.ackTimer);
+		this.coalesceRunning = false;
+		this.wheel.cancel(this.coalesceTimer);
+		for (int i = 0; i < this.timers.length; i++)
+			if (this.running[i]){
+				this.running[i] = false;
+				this.wheel.cancel(this.timers[i]);
+			}
 	}
-	//Get the number of active timers
-	private int activeTimerCount(){
-		synchronized(this.timerMap){
-			return this.timerMap.size();
-		}
-	}	
 }
-
@@ -0,0 +1,255 @@
+package slidingwindow;
+import java.util.*;
+import java.util.zip.*;
+/**
+ * The Codec class compresses and restores frame payloads.  LZ is a byte
+ * oriented LZ77 in the LZ4 block layout, fast enough to keep up with the
+ * link: each sequence is a token of literal count and match length, the
+ * literals, then a 2 byte offset back into the output.  DEFLATE uses
+ * java.util.zip at its fastest level.  Codecs are numbered as bits so a
+ * peer can announce every codec it restores in one byte, along with
+ * whether it takes parity frames.
+ */
+final class Codec {
+	static final int NONE = 0;
+	static final int LZ = 1;
+	static final int DEFLATE = 2;
+	static final int ALL = Codec.LZ | Codec.DEFLATE; //Codecs this side restores
+	//Not a codec - announces this side rebuilds frames from parity frames
+	static final int PARITY = 4;
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5; //Input tail never matched
+	private static final int MAX_OFFSET = 0xffff;
+	private static final int HASH_BITS = 12;
+	//Per thread state, as Deflater and Inflater are not thread safe
+	private static final ThreadLocal<int[]> tables = new ThreadLocal<int[]>(){
+		@Override
+		protected int[] initialValue(){
+			return new int[1 << Codec.HASH_BITS];
+		}
+	};
+	private static final ThreadLocal<Deflater> deflaters =
+			new ThreadLocal<Deflater>(){
+		@Override
+		protected Deflater initialValue(){
+			return new Deflater(Deflater.BEST_SPEED, true);
+		}
+	};
+	private static final ThreadLocal<Inflater> inflaters =
+			new ThreadLocal<Inflater>(){
+		@Override
+		protected Inflater initialValue(){
+			return new Inflater(true);
+		}
+	};
+
+	private Codec(){} //Static methods only
+
+	/**
+	 * Compress a range of bytes
+	 * @param int codec
+	 * 	LZ or DEFLATE
+	 * @param byte[] src
+	 * 	The bytes to compress
+	 * @param int offset
+	 * 	The index of the first byte
+	 * @param int length
+	 * 	The number of bytes
+	 * @param byte[] dest
+	 * 	The array to compress into from index 0
+	 * @param int limit
+	 * 	The most bytes to write
+	 * @return int
+	 * 	The compressed length, or -1 if it would not fit in limit
+	 */
+	static int compress(int codec, byte[] src, int offset, int length,
+			byte[] dest, int limit){
+		switch (codec){
+			case Codec.LZ:
+				return compressLz(src, offset, length, dest, limit);
+			case Codec.DEFLATE:
+				return deflate(src, offset, length, dest, limit);
+			default:
+				throw new IllegalArgumentException("Illegal codec: " + codec);
+		}
+	}
+	/**
+	 * Restore compressed bytes.  Input from a peer is not trusted, so
+	 * anything malformed is reported rather than read past its bounds.
+	 * @param int codec
+	 * 	The codec the bytes were compressed with
+	 * @param byte[] src
+	 * 	The compressed bytes
+	 * @param int offset
+	 * 	The index of the first byte
+	 * @param int length
+	 * 	The number of bytes
+	 * @param byte[] dest
+	 * 	The array to restore into from index 0
+	 * @param int decoded
+	 * 	The length of the restored bytes
+	 * @return boolean
+	 * 	True if exactly decoded bytes were restored
+	 */
+	static boolean decompress(int codec, byte[] src, int offset, int length,
+			byte[] dest, int decoded){
+		if (decoded > dest.length)
+			return false;
+		switch (codec){
+			case Codec.LZ:
+				return decompressLz(src, offset, length, dest, decoded);
+			case Codec.DEFLATE:
+				return inflate(src, offset, length, dest, decoded);
+			default:
+				return false; //Not a codec this side announced
+		}
+	}
+
+	//Find repeats through a hash of the next 4 bytes, and encode them as
+	//a sequence after the literals before them
+	private static int compressLz(byte[] src, int offset, int length,
+			byte[] dest, int limit){
+		int[] table = Codec.tables.get();
+		Arrays.fill(table, -1);
+		int end = offset + length;
+		int matchEnd = end - Codec.LAST_LITERALS; //Matches stop here
+		int anchor = offset; //Start of literals not yet written
+		int out = 0;
+		int i = offset;
+		while (i + Codec.MIN_MATCH <= matchEnd){
+			int sequence = readInt(src, i);
+			int hash = (sequence * 0x9e3779b1) >>> (32 - Codec.HASH_BITS);
+			int ref = table[hash];
+			table[hash] = i;
+			if (ref < 0 || i - ref > Codec.MAX_OFFSET ||
+					readInt(src, ref) != sequence){
+				i += 1 + ((i - anchor) >>> 6); //Skip faster through noise
+				continue;
+			}
+			int match = Codec.MIN_MATCH;
+			while (i + match < matchEnd && src[ref + match] == src[i + match])
+				match++;
+			out = putSequence(src, anchor, i - anchor, i - ref, match,
+					dest, out, limit);
+			if (out < 0)
+				return -1;
+			i += match;
+			anchor = i;
+		}
+		return putSequence(src, anchor, end - anchor, 0, 0, dest, out, limit);
+	}
+	//Write one sequence - a match length of 0 ends the block with
+	//literals only.  Returns index after it, or -1 if it passes limit.
+	private static int putSequence(byte[] src, int literalStart,
+			int literals, int distance, int match, byte[] dest, int out,
+			int limit){
+		//Token, literals, offset and up to 2 length runs
+		int worst = out + 1 + literals + literals / 255 + 2 +
+				match / 255 + 2;
+		if (worst > limit)
+			return -1;
+		int token = out++;
+		int extra = match - Codec.MIN_MATCH;
+		dest[token] = (byte)((Math.min(literals, 15) << 4) |
+				(match == 0 ? 0 : Math.min(extra, 15)));
+		if (literals >= 15)
+			out = putLength(literals - 15, dest, out);
+		System.arraycopy(src, literalStart, dest, out, literals);
+		out += literals;
+		if (match == 0)
+			return out;
+		dest[out++] = (byte)distance;
+		dest[out++] = (byte)(distance >>> 8);
+		if (extra >= 15)
+			out = putLength(extra - 15, dest, out);
+		return out;
+	}
+	//Write rest of a length as bytes of 255 then the remainder
+	private static int putLength(int length, byte[] dest, int out){
+		for (; length >= 255; length -= 255)
+			dest[out++] = (byte)255;
+		dest[out++] = (byte)length;
+		return out;
+	}
+	//Replay sequences, copying matches from output already restored
+	private static boolean decompressLz(byte[] src, int offset, int length,
+			byte[] dest, int decoded){
+		int end = offset + length;
+		int i = offset;
+		int out = 0;
+		while (i < end){
+			int token = src[i++] & 0xff;
+			int literals = token >>> 4;
+			if (literals == 15){
+				int b;
+				do {
+					if (i >= end)
+						return false;
+					b = src[i++] & 0xff;
+					literals += b;
+				} while (b == 255);
+			}
+			if (literals > end - i || literals > decoded - out)
+				return false;
+			System.arraycopy(src, i, dest, out, literals);
+			i += literals;
+			out += literals;
+			if (i == end)
+				break; //Last sequence has no match
+			if (end - i < 2)
+				return false;
+			int distance = (src[i] & 0xff) | ((src[i + 1] & 0xff) << 8);
+			i += 2;
+			int match = (token & 15) + Codec.MIN_MATCH;
+			if ((token & 15) == 15){
+				int b;
+				do {
+					if (i >= end)
+						return false;
+					b = src[i++] & 0xff;
+					match += b;
+				} while (b == 255);
+			}
+			if (distance == 0 || distance > out || match > decoded - out)
+				return false;
+			for (int from = out - distance; match > 0; match--) //May overlap
+				dest[out++] = dest[from++];
+		}
+		return out == decoded;
+	}
+	//Compress with a raw deflate stream, which has no header or trailer
+	private static int deflate(byte[] src, int offset, int length,
+			byte[] dest, int limit){
+		Deflater deflater = Codec.deflaters.get();
+		deflater.reset();
+		deflater.setInput(src, offset, length);
+		deflater.finish();
+		int out = deflater.deflate(dest, 0, limit);
+		return deflater.finished() ? out : -1;
+	}
+	//Restore a raw deflate stream
+	private static boolean inflate(byte[] src, int offset, int length,
+			byte[] dest, int decoded){
+		Inflater inflater = Codec.inflaters.get();
+		inflater.reset();
+		inflater.setInput(src, offset, length);
+		try {
+			int out = 0;
+			while (out < decoded && !inflater.finished()){
+				int n = inflater.inflate(dest, out, decoded - out);
+				if (n == 0 && 
+						(inflater.needsInput() || inflater.needsDictionary()))
+					return false; //Stream ended early
+				out += n;
+			}
+			return out == decoded;
+		} catch (DataFormatException dfe){
+			return false;
+		}
+	}
+	//Read 4 bytes as a little endian int
+	private static int readInt(byte[] b, int i){
+		return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 |
+				(b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+	}
+}
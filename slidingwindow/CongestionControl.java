@@ -0,0 +1,43 @@
+package slidingwindow;
+/**
+ * The CongestionControl interface decides how many frames a DataLink may
+ * have in flight.  The sliding window sets the most frames the protocol
+ * allows, and the congestion window can only lower that number, so a big
+ * window does not flood a congested path.  A DataLink calls these methods
+ * while holding its window lock, so implementations need no locking of
+ * their own, but each Socket needs its own instance.
+ */
+public interface CongestionControl {
+	/**
+	 * Get the number of frames which may be sent and not yet acked
+	 * @return int
+	 * 	The congestion window in frames, at least 1
+	 */
+	int getWindow();
+	/**
+	 * Called when an ack arrives which covers frames not acked before
+	 * @param int frames
+	 * 	The number of frames newly acked
+	 * @param long rtt
+	 * 	The round trip time measured from the ack in nanoseconds, or -1
+	 * 	if the acked frames were resent and cannot be measured
+	 * @param int inFlight
+	 * 	The number of frames still unacked after this ack
+	 */
+	void onAck(int frames, long rtt, int inFlight);
+	/**
+	 * Called when the retransmission timer expires - frames were lost
+	 * @param int inFlight
+	 * 	The number of frames unacked when the timer expired
+	 */
+	void onTimeout(int inFlight);
+	/**
+	 * Called when duplicate acks show a frame was lost while later frames
+	 * still arrive.  Treated as a timeout unless overridden.
+	 * @param int inFlight
+	 * 	The number of frames unacked when the loss was found
+	 */
+	default void onFastRetransmit(int inFlight){
+		onTimeout(inFlight);
+	}
+}
@@ -1,9 +1,11 @@
 package slidingwindow; 
 import slidingwindow.Frame.FrameKind;
 import java.util.*;
-import java.util.function.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.net.*;
+import java.nio.*;
 import java.io.*;
 /**
  * The DataLink class receives packets from Socket, and sends them to their
@@ -12,257 +14,1276 @@ import java.io.*;
  * other Socket.
  */
 public class DataLink {
+	/**
+	 * Sliding window protocols a connection can run
+	 */
+	public enum Protocol {GO_BACK_N, SELECTIVE_REPEAT;};
+	/**
+	 * Codecs for data frame payloads.  LZ is fastest, DEFLATE packs text
+	 * tighter for more CPU.
+	 */
+	public enum Compression {NONE, LZ, DEFLATE;};
+
 	static int dataTimeout = 10000; 
-	final static int ACK_TIMEOUT = 50; //No data frame to piggyback on
+	//Longest an ack waits for a data frame to piggyback on, in ms
+	static int maxAckDelay = 50;
+	static int ackFrequency = 4; //Ack at least every N frames in sequence
+	static int dupAckThreshold = 3; //Duplicate acks which mean a loss
+	//Longest flushed bytes are held to merge with later ones, in ms - 0
+	//sends every flush at once
+	static int coalesceDelay = 0;
+	//Codec offered to new connections
+	static Compression compression = Compression.NONE;
+	//New connections send and take parity frames if the peer does too
+	static boolean forwardErrorCorrection = false;
+	//Seqno of the first frame of new connections - set near 2^32 so the
+	//sequence space wraps early in a transfer instead of after 4 billion
+	//frames
+	static int initialSeqno = 0;
+	//Frames one parity frame covers, as loss allows
+	private static final int MIN_PARITY_GROUP = 2;
+	private static final int MAX_PARITY_GROUP = 16;
+	//Parity frames held until all but one of their group arrives
+	private static final int PARITY_BACKLOG = 4;
 	private PhysicalLayer physicalLayer; //Sends and receives frames
 	private final Socket socket; //Sends and receives data packets
-	private final Clock clock = new Clock(this); //Handles timeouts
-	//Frames currently in window
-	private final LinkedList<Frame> buffer = new LinkedList<Frame>();
-	private int maxSeq;
-	private AtomicInteger nextFrameToSend = new AtomicInteger(0);
-	private AtomicInteger frameExpected = new AtomicInteger(0);
+	private final Clock clock; //Handles timeouts
+	//Measures round trip time to set retransmission timeout
+	private final RttEstimator rtt = new RttEstimator(
+			TimeUnit.MILLISECONDS.toNanos(DataLink.dataTimeout));
+	//Reused for every standalone ack
+	private final ByteBuffer ackBuffer = Frame.allocate(Frame.MAX_ACK_SIZE);
+	//Reused for frames held out of sequence in each SACK
+	private final byte[] sackBitmap = new byte[Frame.MAX_SACK_FRAMES / 8];
+	//Frames sent and not yet acked, oldest first
+	private final SendWindow buffer;
+	//Buffer lock - a ReentrantLock rather than a monitor, so a virtual
+	//thread waiting for room or acks does not pin its carrier
+	private final ReentrantLock lock = new ReentrantLock();
+	//Signalled when the buffer gains room, all acks arrive, or EOF ends
+	private final Condition changed = this.lock.newCondition();
+	//Frames this side may have outstanding, and frames the peer may - the
+	//receive window must cover everything the peer can send
+	private final int windowSize;
+	private final int peerWindowSize;
+	private boolean offerWindow; //Client offers windowSize on first frame
+	//Compression chosen when connection was made, the Codec bits this
+	//side restores, and those the peer has announced it restores
+	private final Compression sendCompression = DataLink.compression;
+	private final int codecs = ((DataLink.compression == Compression.NONE) 
+			? Codec.NONE 
+			: Codec.ALL) | 
+			(DataLink.forwardErrorCorrection ? Codec.PARITY : Codec.NONE);
+	private volatile int peerCodecs = Codec.NONE;
+	//Server repeats its codecs on acks until the client is seen using one
+	private volatile boolean announceCodecs = false;
+	private volatile Protocol protocol = Protocol.GO_BACK_N;
+	//Limits frames in flight below window size - null for no limit
+	private CongestionControl congestionControl = null;
+	//Out of sequence frames held by selective repeat receiver, indexed by
+	//the low bits of seqno
+	private Frame[] receiveWindow;
+	private AtomicInteger nextFrameToSend = 
+			new AtomicInteger(DataLink.initialSeqno);
+	private AtomicInteger frameExpected = 
+			new AtomicInteger(DataLink.initialSeqno);
 	private AtomicBoolean sentEOF = new AtomicBoolean(false);
 	private volatile boolean allAcksReceived = false;
 	private volatile boolean receivedEOF = false;
 	//Resending all frames in buffer after timeout
 	private volatile boolean retransmit = false; 
-	//Frame numbers iterate past maxSeq back to 0
-	private final IntUnaryOperator incrementer;	 
+	//Frames the peer last advertised it can take - frames before sendLimit
+	//may be sent.  Guarded by buffer lock.
+	private boolean peerAdvertises = false; //Unlimited until first seen
+	private int sendLimit;
+	private int windowAckno; //Ackno the advertisement came with
+	//Fast retransmit state - guarded by buffer lock
+	private int dupAcks = 0; //Acks in a row which acked nothing new
+	private boolean recovering = false; //Resent after duplicate acks
+	private int recoveryPoint; //Last frame sent when recovery began
+	//Frames received in sequence since the last ack was sent
+	private final AtomicInteger framesToAck = new AtomicInteger(0);
+	private long lastArrival = 0; //When the last frame arrived in sequence
+	private long arrivalGap = 0; //Smoothed ns between frames in sequence
+	//Bytes flushed while frames were unacked, held to merge with later
+	//ones into a full packet - guarded by buffer lock
+	private byte[] held;
+	private int heldLength = 0;
+	private boolean heldDue = false; //Held too long, send once there is room
+	private volatile boolean noDelay = false; //Send every flush at once
+	//XOR of the blocks of data frames in the parity group being sent -
+	//guarded by buffer lock
+	private byte[] parityBlock;
+	private int parityLength = 0; //Longest block in group
+	private int parityBase; //First frame in group
+	private int parityCount = 0; //Frames in group so far
+	private int parityGroup = DataLink.MAX_PARITY_GROUP; //Frames per group
+	private int paritySize; //Frames in group being sent once it is full
+	//Parity receiver - copies of frames lately received, indexed by the
+	//low bits of seqno, and parity frames waiting to rebuild their group
+	private final Frame[] recent = new Frame[4 * DataLink.MAX_PARITY_GROUP];
+	private final Frame[] parities = new Frame[DataLink.PARITY_BACKLOG];
+	private int nextParity = 0; //Slot of parities to fill next
+	private boolean parityArrived = false;
+	private int parityEnd; //Frame after the last group a parity covered
+	private int lastGroup = DataLink.MAX_PARITY_GROUP; //Frames it covered
+	//Smoothed share of frames missing from groups, in 65536ths
+	private volatile int loss = 0;
+	//Gap not yet reported while a parity frame may fill it
+	private volatile boolean ackHeld = false;
 
 	/**
 	 * Set the duration in which frames are resent if not acked by
-	 * the receiver.
+	 * the receiver, until a connection has measured its round trip time.
 	 * @param int timeout
 	 * 	The timeout in milliseconds
 	 */
 	public static void setTimeout(int timeout){
-		if (timeout <= 2 * PhysicalLayer.SEND_DELAY)
+		if (timeout <= 2 * PhysicalLayer.getSendDelay())
 			throw new IllegalArgumentException("Timeout too short");
 		DataLink.dataTimeout = timeout;
 	}
+	/**
+	 * Set the longest time a received frame waits to be acked.  The ack
+	 * is sent sooner if a data frame can carry it, if enough frames
+	 * arrive, or if frames arrive closer together than this.
+	 * @param int delay
+	 * 	The delay in milliseconds
+	 */
+	public static void setMaxAckDelay(int delay){
+		if (delay < 1)
+			throw new IllegalArgumentException("Illegal delay: " + delay);
+		DataLink.maxAckDelay = delay;
+	}
+	/**
+	 * Set how many frames received in sequence may share one ack.  Frames
+	 * out of sequence are always acked at once.
+	 * @param int frames
+	 * 	The number of frames, 1 to ack every frame
+	 */
+	public static void setAckFrequency(int frames){
+		if (frames < 1)
+			throw new IllegalArgumentException("Illegal frequency: " + frames);
+		DataLink.ackFrequency = frames;
+	}
+	/**
+	 * Set how many duplicate acks make the sender resend without waiting
+	 * for its timer.  The receiver acks every frame out of sequence, so
+	 * acks which repeat the last ackno mean a frame was lost.
+	 * @param int acks
+	 * 	The number of duplicate acks
+	 */
+	public static void setDupAckThreshold(int acks){
+		if (acks < 1)
+			throw new IllegalArgumentException("Illegal threshold: " + acks);
+		DataLink.dupAckThreshold = acks;
+	}
+	/**
+	 * Set the longest time bytes flushed to a Socket are held back while
+	 * earlier frames are unacked, so small writes merge into fewer full
+	 * frames.  Held bytes are sent as soon as every frame is acked, or
+	 * once they fill a packet.
+	 * @param int delay
+	 * 	The delay in milliseconds, 0 (default) to send every flush at once
+	 */
+	public static void setCoalesceDelay(int delay){
+		if (delay < 0)
+			throw new IllegalArgumentException("Illegal delay: " + delay);
+		DataLink.coalesceDelay = delay;
+	}
+	/**
+	 * Set the codec new connections compress data frames with.  Both
+	 * sides announce the codecs they restore when a connection is made,
+	 * and a side compresses only with one its peer announced, falling back
+	 * to the other codec if need be.  Frames which do not shrink are
+	 * sent raw.
+	 * @param Compression compression
+	 * 	LZ, DEFLATE, or NONE (default) to neither compress nor announce
+	 */
+	public static void setCompression(Compression compression){
+		if (compression == null)
+			throw new IllegalArgumentException("Compression required");
+		DataLink.compression = compression;
+	}
+	/**
+	 * Set whether new connections send a parity frame after each group of
+	 * data frames, from which the receiver rebuilds one frame lost from
+	 * the group without waiting for it to be resent.  Both sides must
+	 * enable it.  Groups shrink as the receiver reports more loss, from 16
+	 * frames per parity frame down to 2.
+	 * @param boolean enabled
+	 * 	True to send and take parity frames, false (default) for neither
+	 */
+	public static void setForwardErrorCorrection(boolean enabled){
+		DataLink.forwardErrorCorrection = enabled;
+	}
+	//Set seqno new connections start from, so wraparound can be tested.
+	//Both ends must use the same one - the server only accepts a first
+	//frame numbered with it.
+	static void setInitialSeqno(int seqno){
+		DataLink.initialSeqno = seqno;
+	}
 
-	//Server setup - doesn't know who client is yet	
-	DataLink(Socket socket, int fromPort) throws IOException {
-		this(socket);
-		this.physicalLayer = PhysicalLayer.connectAndWait(this, fromPort);	
-		//Resize if sender has different value
-		this.maxSeq = PhysicalLayer.getWindowSize() - 1;
+	//Server setup - client has sent its first frame to listener, offering
+	//the window it sends with, or -1 if it made no offer, and the codecs
+	//it restores
+	DataLink(Socket socket, Listener listener, SocketAddress client, 
+			int offer, int codecs){
+		//Receive whatever client sends, send no more than it would
+		this(socket, Math.min(PhysicalLayer.getWindowSize(), 
+				DataLink.offered(offer)), DataLink.offered(offer));
+		this.peerCodecs = codecs;
+		this.announceCodecs = (codecs != Codec.NONE && 
+				this.codecs != Codec.NONE);
+		this.physicalLayer = PhysicalLayer.accept(this, listener, client);
 	}
 	
 	//Client setup - knows who server is
 	DataLink(Socket socket, int fromPort, InetAddress toAddress, int toPort) 
 			throws IOException {
-		this(socket);
+		//Server sends no more than the window offered
+		this(socket, PhysicalLayer.getWindowSize(), 
+				PhysicalLayer.getWindowSize());
+		this.offerWindow = true;
 		this.physicalLayer = 
 				PhysicalLayer.connect(this, fromPort, toAddress, toPort);
 	}
+	//Loopback client setup - joined to a server by the server's setup
+	DataLink(Socket socket){
+		this(socket, PhysicalLayer.getWindowSize(), 
+				PhysicalLayer.getWindowSize());
+		this.offerWindow = true;
+	}
+	//Loopback server setup - in the same JVM as client, so what its first
+	//frame would offer is known now.  Joins both to an in-memory transport.
+	DataLink(Socket socket, DataLink client) throws IOException {
+		this(socket, Math.min(PhysicalLayer.getWindowSize(), client.windowSize),
+				client.windowSize);
+		this.peerCodecs = client.codecs;
+		this.announceCodecs = (client.codecs != Codec.NONE && 
+				this.codecs != Codec.NONE);
+		PhysicalLayer[] pair = PhysicalLayer.loopback(client, this);
+		client.physicalLayer = pair[0];
+		this.physicalLayer = pair[1];
+	}
+	//Shared memory client setup - its first frame goes through the ring
+	DataLink(Socket socket, SharedMemoryTransport transport){
+		this(socket);
+		this.physicalLayer = PhysicalLayer.attach(this, transport);
+	}
+	//Shared memory server setup - client's first frame is waiting in the
+	//ring, offering the window it sends with and the codecs it restores
+	DataLink(Socket socket, SharedMemoryTransport transport, int offer, 
+			int codecs){
+		this(socket, Math.min(PhysicalLayer.getWindowSize(), 
+				DataLink.offered(offer)), DataLink.offered(offer));
+		this.peerCodecs = codecs;
+		this.announceCodecs = (codecs != Codec.NONE && 
+				this.codecs != Codec.NONE);
+		this.physicalLayer = PhysicalLayer.attach(this, transport);
+	}
 	//Set up member vars
-	private DataLink(Socket socket){
+	private DataLink(Socket socket, int windowSize, int peerWindowSize){
 		this.socket = socket;
-		this.maxSeq = PhysicalLayer.getWindowSize() - 1;
-		//Increment frame numbers through maxSeq
-	   	this.incrementer = new IntUnaryOperator(){
-			@Override
-			public int applyAsInt(int value){
-				return (value + 1) % (maxSeq + 1);
-			}
-		}; 
+		this.windowSize = windowSize;
+		this.peerWindowSize = peerWindowSize;
+		this.buffer = new SendWindow(windowSize);
+		this.clock = new Clock(this, windowSize);
+	}
+
+	//Get window a client offered, or the default if it made no valid offer
+	static int offered(int offer){
+		return (offer > 0 && offer <= PhysicalLayer.MAX_WINDOW_SIZE)
+				? offer
+				: PhysicalLayer.getWindowSize();
+	}
+
+	//Choose protocol for this connection
+	void setProtocol(Protocol protocol){
+		if (protocol == null)
+			throw new IllegalArgumentException("Protocol required");
+		this.lock.lock();
+		try {
+			this.protocol = protocol;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	//Choose congestion control for this connection, or null for none
+	void setCongestionControl(CongestionControl congestionControl){
+		this.lock.lock();
+		try {
+			this.congestionControl = congestionControl;
+			this.socket.disableNetworkLayer(buffer.size() >= sendWindow());
+			if (buffer.size() < sendWindow())
+				this.changed.signalAll(); //EOF may be waiting for room
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	//Choose whether flushed bytes are sent at once instead of being held
+	//to merge with later ones
+	void setNoDelay(boolean noDelay){
+		this.noDelay = noDelay;
+		if (noDelay)
+			coalesceTimeout(); //Send anything already held
 	}
 
 	//Send EOF notification and disconnect from physical layer after all
 	//acknowledgements are received
 	void end() throws IOException {
 		Frame f;
-		//If sentEOF is false, set it true and send EOF frame
-		if (!this.sentEOF.getAndSet(true))
+		//If sentEOF is false, send EOF frame, which sets it
+		if (!this.sentEOF.get()){
+			sendHeld(); //Held bytes go before EOF
 			sendEOF();
-		synchronized(this.buffer){
+		}
+		this.lock.lock();
+		try {
 			//EOF sender waits until all Acks received
 			//EOF receiver must wait in case more frames arrive
 			while(!this.allAcksReceived || this.receivedEOF)
 				try {
-					this.buffer.wait();
+					this.changed.await();
 				} catch (InterruptedException ie){
 					ie.printStackTrace();
 				}
+		} finally {
+			this.lock.unlock();
 		}
 		this.clock.end(); //Stop further timeout events
 		this.physicalLayer.disconnect(); //Stop listening for frames
 	}
 	//Network Layer has packet to send
 	void networkLayerReady(Packet p) {
+		//Compress before taking lock, so acks are not held up
+		Frame f = Frame.newDataFrame(p, sendCodec());
+		this.lock.lock();
+		try {
+			waitForRoom();
+			if (this.heldLength > 0){ //Follows held bytes into their frame
+				f.release();
+				f = coalesce(p, this.held.length);
+			} else
+				f = queueFrame(f);
+			if (f != null)
+				sendFrame(f);
+		} finally {
+			this.lock.unlock();
+		}
+	}	
+	//Network layer flushed a packet shorter than limit - hold it to merge
+	//with bytes flushed after it while earlier frames are unacked
+	void networkLayerFlushed(Packet p, int limit){
+		if (!coalescing() && this.heldLength == 0){
+			networkLayerReady(p);
+			return;
+		}
 		Frame f;
-		synchronized(this.buffer){
-			while (retransmit)
-				try { //Wait while retransmitting frames from timeout
-					this.buffer.wait();
-				} catch (InterruptedException ie){
-					ie.printStackTrace();
-				}
-			int ackno = getAckExpected();
-			int frameno = nextFrameToSend.getAndUpdate(incrementer);
-			f = Frame.newDataFrame(ackno, frameno, p);
-			buffer.addLast(f);
+		this.lock.lock();
+		try {
+			waitForRoom();
+			f = coalesce(p, limit);
+			if (f != null)
+				sendFrame(f);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	//Wait while retransmitting or until window has room.  Caller must hold
+	//buffer lock.
+	private void waitForRoom(){
+		//Held bytes may be sent from another thread, so the room the
+		//socket saw before calling can be gone
+		while (retransmit || buffer.size() >= sendWindow())
+			try {
+				this.changed.await();
+			} catch (InterruptedException ie){
+				ie.printStackTrace();
+			}
+	}
+	//Number data frame and add it to buffer.  Caller must hold buffer lock
+	//and send the frame returned.
+	private Frame queueFrame(Frame f){
+		int ackno = getAckExpected();
+		int frameno = nextFrameToSend.getAndIncrement();
+		f.number(ackno, frameno);
+		f = offerWindow(f);
+		addToParity(f);
+		buffer.add(f);
 
-			if (buffer.size() == maxSeq) //If buffer full
-				//Disable network layer until acks received
-				this.socket.disableNetworkLayer(true); 
-			sendFrame(f);
+		if (buffer.size() >= sendWindow()) //If buffer full
+			//Disable network layer until acks received
+			this.socket.disableNetworkLayer(true); 
+		return f;
+	}
+	//Add data frame to the parity group being sent, and attach the group's
+	//parity frame to it once the group is full.  Caller must hold buffer
+	//lock.
+	private void addToParity(Frame f){
+		if (!parityEnabled())
+			return;
+		if (this.parityCount == 0){
+			this.parityBase = f.getSeqno();
+			//Group fits in half the window, so a frame lost from it leaves
+			//room to send the rest of the group and its parity
+			this.paritySize = Math.min(this.parityGroup, 
+					Math.max(DataLink.MIN_PARITY_GROUP, sendWindow() / 2));
 		}
-	}	
+		int length = f.getBlockLength();
+		if (this.parityBlock == null || this.parityBlock.length < length)
+			this.parityBlock = (this.parityBlock == null)
+					? new byte[length]
+					: Arrays.copyOf(this.parityBlock, length);
+		f.xorBlock(this.parityBlock);
+		this.parityLength = Math.max(this.parityLength, length);
+		if (++this.parityCount < this.paritySize)
+			return;
+		f.parity = Frame.newParityFrame(this.parityBase, this.parityCount, 
+				this.parityBlock, this.parityLength);
+		Arrays.fill(this.parityBlock, 0, this.parityLength, (byte)0);
+		this.parityLength = 0;
+		this.parityCount = 0;
+	}
+	//Determine if both sides send and take parity frames
+	private boolean parityEnabled(){
+		return (this.codecs & this.peerCodecs & Codec.PARITY) != 0;
+	}
+	//Get frames per parity group for the share of frames the receiver
+	//reports lost, in 256ths - few enough that a group seldom loses two
+	private static int parityGroup(int loss){
+		return Math.max(DataLink.MIN_PARITY_GROUP, 
+				Math.min(DataLink.MAX_PARITY_GROUP, 128 / Math.max(1, loss)));
+	}
+	//Choose codec to compress data frames with - the one configured if the
+	//peer restores it, otherwise any the peer restores
+	private int sendCodec(){
+		int peer = this.peerCodecs;
+		int preferred = (this.sendCompression == Compression.DEFLATE)
+				? Codec.DEFLATE
+				: Codec.LZ;
+		if (this.sendCompression == Compression.NONE)
+			return Codec.NONE;
+		else if ((peer & preferred) != 0)
+			return preferred;
+		else if ((peer & Codec.LZ) != 0)
+			return Codec.LZ;
+		else if ((peer & Codec.DEFLATE) != 0)
+			return Codec.DEFLATE;
+		return Codec.NONE;
+	}
+	//Determine if flushed bytes may be held back
+	private boolean coalescing(){
+		return !this.noDelay && DataLink.coalesceDelay > 0;
+	}
+	//Append packet to held bytes, returning a frame to send once they fill
+	//limit, nothing is unacked, or they have waited long enough.  Bytes
+	//past limit are held for the next frame.  Caller must hold buffer lock
+	//and send the frame returned.
+	private Frame coalesce(Packet p, int limit){
+		if (this.heldLength == 0 && 
+				(this.held == null || this.held.length != limit))
+			this.held = new byte[limit];
+		boolean wasHeld = this.heldLength > 0;
+		int n = Math.min(p.length(), limit - this.heldLength);
+		System.arraycopy(p.decode(), p.offset(), this.held, this.heldLength, n);
+		this.heldLength += n;
+		Frame f = null;
+		if (this.heldLength == limit || buffer.isEmpty() || this.heldDue ||
+				!coalescing())
+			f = queueHeld();
+		if (n < p.length()){ //Full frame queued - rest starts the next
+			this.heldLength = p.length() - n;
+			System.arraycopy(p.decode(), p.offset() + n, this.held, 0, 
+					this.heldLength);
+		}
+		//Deadline runs from when bytes were first held
+		if (this.heldLength == 0)
+			this.clock.stopCoalesceTimer();
+		else if (!wasHeld || f != null)
+			this.clock.startCoalesceTimer(
+					TimeUnit.MILLISECONDS.toNanos(DataLink.coalesceDelay));
+		return f;
+	}
+	//Put held bytes in a frame.  Caller must hold buffer lock, make sure
+	//window has room, and send the frame returned.
+	private Frame queueHeld(){
+		Frame f = queueFrame(Frame.newDataFrame(
+				new Packet(this.held, 0, this.heldLength), sendCodec()));
+		this.heldLength = 0;
+		this.heldDue = false;
+		return f;
+	}
+	//Held bytes have waited long enough - send them once window has room
+	void coalesceTimeout(){
+		Frame f;
+		this.lock.lock();
+		try {
+			if (this.heldLength == 0)
+				return;
+			if (retransmit || buffer.size() >= sendWindow()){
+				this.heldDue = true; //Sent by the ack which makes room
+				return;
+			}
+			this.clock.stopCoalesceTimer();
+			f = queueHeld();
+		} finally {
+			this.lock.unlock();
+		}
+		sendFrame(f);
+	}
+	//Send held bytes, waiting for room if need be
+	private void sendHeld(){
+		Frame f;
+		this.lock.lock();
+		try {
+			waitForRoom();
+			if (this.heldLength == 0)
+				return;
+			this.clock.stopCoalesceTimer();
+			f = queueHeld();
+		} finally {
+			this.lock.unlock();
+		}
+		sendFrame(f);
+	}
 	//Send frame and set timers
 	private void sendFrame(Frame f){
-		System.out.printf("%n%80s%n", ">>> " + f.getKind() + 
-				" FRAME " + f.getSeqno() + " SENT >>>");
-		this.physicalLayer.fromDataLink(f);
-		startTimer(f.getSeqno());
-		stopAckTimer();
+		//Frame carries any ack waiting on the timer.  Frames arriving
+		//from here on are counted again and start a new timer.
+		if (this.framesToAck.get() > 0){
+			stopAckTimer();
+			this.framesToAck.set(0);
+		}
+		int seqno;
+		synchronized(f){ //Resent frames piggyback the latest ack
+			if (f.acked)
+				return; //Acked since the timeout chose to resend it, and
+						//its buffer may already be reused
+			seqno = f.getSeqno();
+			System.out.printf("%n%80s%n", ">>> " + f.getKind() + 
+					" FRAME " + seqno + " SENT >>>");
+			f.setAckno(getAckExpected());
+			f.setReceiveWindow(this.socket.receiveSpace());
+			long departure = this.physicalLayer.fromDataLink(f);
+			if (f.sentAt != 0)
+				f.resent = true; //Ack could be for either transmission
+			f.sentAt = departure;
+			if (f.parity != null){ //Frame completes a group
+				System.out.printf("%n%80s%n", ">>> PARITY FRAME " + 
+						f.parity.getSeqno() + " SENT >>>");
+				f.parity.setAckno(getAckExpected());
+				this.physicalLayer.fromDataLink(f.parity);
+				f.parity.release();
+				f.parity = null;
+			}
+		}
+		startTimer(seqno, f.sentAt);
 	}
 	//Send EOF frame
 	private void sendEOF() {
 		Frame f;
-		synchronized(this.buffer){
-			while (retransmit)
-				try { //Wait while retransmitting frames from timeout
-					this.buffer.wait();
+		this.lock.lock();
+		try {
+			//Wait while retransmitting or until window has room
+			while (retransmit || buffer.size() >= sendWindow())
+				try {
+					this.changed.await();
 				} catch (InterruptedException ie){
 					ie.printStackTrace();
 				}
+			//Set only once EOF is in buffer - an ack emptying the buffer
+			//while EOF waited for room would otherwise end the connection
+			//before EOF was sent
+			if (this.sentEOF.getAndSet(true))
+				return;
 			int ackno = getAckExpected();
-			int frameno = nextFrameToSend.getAndUpdate(incrementer);
-			f = Frame.newEOFFrame(ackno, frameno);
-			buffer.addLast(f);
+			int frameno = nextFrameToSend.getAndIncrement();
+			f = offerWindow(Frame.newEOFFrame(ackno, frameno));
+			buffer.add(f);
+		} finally {
+			this.lock.unlock();
 		}
 		sendFrame(f);
 	}
-	//Send Ack frame after Ack timeout
+	//Add window offer to client's first frame.  Caller must hold buffer lock.
+	private Frame offerWindow(Frame f){
+		if (!this.offerWindow)
+			return f;
+		this.offerWindow = false;
+		Frame offer = f.withOffer(this.windowSize, this.codecs);
+		f.release();
+		return offer;
+	}
+	//Send Ack frame after Ack timeout - selective repeat also reports
+	//frames it holds out of sequence so they are not resent
 	private void sendAck() {
-		int ackno = getAckExpected();
-		Frame f = Frame.newAck(ackno);
-		this.physicalLayer.fromDataLink(f);
-		System.out.printf("%n%80s%n", ">>> ACK FRAME " 
-				+ f.getAckno() + " SENT >>>");
+		Frame f;
+		int expected = frameExpected.get();
+		int ackno = expected - 1;
+		synchronized(this.ackBuffer){
+			this.ackBuffer.clear();
+			int length = fillSackBitmap(expected);
+			if (length > 0)
+				f = Frame.newSack(ackno, this.sackBitmap, length, 
+						this.ackBuffer);
+			else
+				f = Frame.newAck(ackno, this.ackBuffer);
+			if (this.announceCodecs)
+				f.addCodecs(this.codecs, this.ackBuffer);
+			f.addReceiveWindow(this.socket.receiveSpace(), this.ackBuffer);
+			if (this.parityArrived)
+				f.addLoss(this.loss >> 8, this.ackBuffer);
+			this.physicalLayer.fromDataLink(f);
+			this.ackHeld = false;
+		}
+		System.out.printf("%n%80s%n", ">>> " + f.getKind() + " FRAME " 
+				+ ackno + " SENT >>>");
+	}
+	//Set a bit in sackBitmap for each frame after expected held in the
+	//receive window - returns bytes used, 0 if no frames are held
+	private int fillSackBitmap(int expected){
+		Frame[] window = this.receiveWindow;
+		if (this.protocol != Protocol.SELECTIVE_REPEAT || window == null)
+			return 0;
+		int frames = Math.min(this.peerWindowSize - 1, Frame.MAX_SACK_FRAMES);
+		int length = 0;
+		for (int i = 0; i < frames; i++){
+			if (i % 8 == 0)
+				this.sackBitmap[i / 8] = 0;
+			//A frame delivered since expected was read leaves its slot
+			//empty, so bits are never set for frames not held
+			if (window[slot(expected + 1 + i)] != null){
+				this.sackBitmap[i / 8] |= (byte)(1 << (i % 8));
+				length = i / 8 + 1;
+			}
+		}
+		return length;
 	}
-	//Frame received from physical layer
+	//Frame received from physical layer - f is a view of the receive
+	//buffer, so it must be copied to keep it past this call
 	void frameArrival(Frame f) {
 		////// DO FOR ALL FRAMES /////////
-		synchronized(this.buffer){
+		Frame acked = null;
+		int ackedCount = 0;
+		Frame lost = null; //Frame to resend before its timer expires
+		Frame flushed = null; //Held bytes sent now acks have drained
+		boolean goBack = false; //Resend whole Go-Back-N window
+		int announced = f.getCodecs(); //Server answers client's offer on acks
+		if (announced != Codec.NONE)
+			this.peerCodecs = announced;
+		this.lock.lock();
+		try {
 			while (buffer.size() > 0 && 
-					DataLink.between(buffer.get(0).getSeqno(), 
+					DataLink.between(buffer.first().getSeqno(), 
 						f.getAckno(), nextFrameToSend.get())){
 				//Take acked frames out of buffer and stop timer
-				Frame removed = buffer.remove();
-				this.clock.stopTimer(removed.getSeqno());
+				acked = buffer.remove();
+				ackedCount++;
+				this.clock.stopTimer(acked.getSeqno());
+				synchronized(acked){ //Not resent once its buffer is reused
+					acked.acked = true;
+					acked.release();
+				}
+			}
+			boolean wasClosed = windowClosed();
+			boolean windowUpdate = receiveWindowArrival(f);
+			if (f.getLoss() >= 0) //Next group sized for the receiver's loss
+				this.parityGroup = DataLink.parityGroup(f.getLoss());
+			//Frame sent while window was closed was refused, so resend it
+			//now rather than when its timer expires
+			if (wasClosed && !windowClosed() && !buffer.isEmpty()){
+				if (this.protocol == Protocol.GO_BACK_N)
+					goBack = true;
+				else if (!buffer.first().sacked)
+					lost = buffer.first();
+			}
+			//Measure round trip unless frame was resent (Karn's rule), or
+			//sacked and so measured already while it waited for the gap
+			if (acked != null){
+				long sample = -1;
+				if (!acked.resent && !acked.sacked && acked.sentAt != 0){
+					sample = System.nanoTime() - acked.sentAt;
+					this.rtt.sample(sample);
+				} else
+					this.rtt.resetBackoff();
+				if (this.congestionControl != null)
+					this.congestionControl.onAck(ackedCount, sample, 
+							buffer.size());
+			}
+			if (f.getKind() == FrameKind.SACK)
+				sackArrival(f);
+			if (ackedCount > 0)
+				this.dupAcks = 0;
+			//Partial ack during recovery - next frame up was lost too
+			if (this.recovering && ackedCount > 0){
+				if (buffer.isEmpty() || !DataLink.between(
+						buffer.first().getSeqno(), this.recoveryPoint,
+						nextFrameToSend.get()))
+					this.recovering = false; //All lost frames resent
+				else if (this.protocol == Protocol.SELECTIVE_REPEAT &&
+						!buffer.first().sacked)
+					lost = buffer.first();
+			}
+			//Ack repeating the one before the window acked nothing new - 
+			//one which changes the window or refuses a frame for lack of
+			//room is not a sign of loss
+			if (f.isAck() && ackedCount == 0 && !buffer.isEmpty() && 
+					f.getAckno() == buffer.first().getSeqno() - 1 &&
+					!windowUpdate && f.getReceiveWindow() != 0 &&
+					++this.dupAcks == DataLink.dupAckThreshold &&
+					!this.recovering){
+				this.recovering = true;
+				this.recoveryPoint = nextFrameToSend.get() - 1;
+				System.out.printf("%40s%n",
+						"*** FAST RETRANSMIT - ack expected: " + 
+						buffer.first().getSeqno() + " ***");
+				if (this.congestionControl != null)
+					this.congestionControl.onFastRetransmit(buffer.size());
+				if (this.protocol == Protocol.SELECTIVE_REPEAT)
+					lost = buffer.first().sacked ? null : buffer.first();
+				else
+					goBack = true;
 			}
 			//Release thread that called end() which was waiting for
 			//receiver to ack its EOF message
 			if (buffer.size() == 0 && this.sentEOF.get()){
 				this.allAcksReceived = true;
-				this.buffer.notifyAll();
+				this.changed.signalAll();
 			}
 
+			//Held bytes go once nothing is unacked or they are due
+			if (this.heldLength > 0 && (buffer.isEmpty() || this.heldDue) &&
+					buffer.size() < sendWindow() && !retransmit){
+				this.clock.stopCoalesceTimer();
+				flushed = queueHeld();
+			}
 			//Buffer can hold more frames
-			if (buffer.size() < maxSeq && !retransmit)
+			if (buffer.size() < sendWindow() && !retransmit){
 				this.socket.disableNetworkLayer(false);
-		} 
+				this.changed.signalAll(); //EOF may be waiting for room
+			}
+		} finally {
+			this.lock.unlock();
+		}
+
 
+		if (lost != null)
+			sendFrame(lost);
+		else if (goBack)
+			goBackN();
+		if (flushed != null)
+			sendFrame(flushed);
 
 		////// DO FOR ACK THEN STOP ///////
-		if (f.getKind() == FrameKind.ACK){
-			System.out.println("\n<<< ACK FRAME " + f.getAckno() + 
-					" RECEIVED <<<");
+		if (f.isAck()){
+			System.out.println("\n<<< " + f.getKind() + " FRAME " + 
+					f.getAckno() + " RECEIVED <<<");
 			return;
 		}
 
-	    ////// DO FOR DATA AND EOF //////	
+	    ////// DO FOR DATA, EOF AND PARITY //////	
 		System.out.printf("\n<<< %s FRAME %d RECEIVED: %d bytes <<<%n", 
 				f.getKind(), f.getSeqno(), f.getLength());
 
-		startAckTimer(); //Must send ack frame if cannot piggyback
+		if (f.getKind() == FrameKind.PARITY){
+			if (!receivedEOF && parityEnabled())
+				parityArrival(f);
+			return;
+		}
+
+		if (receivedEOF){ //If received EOF, no more data expected
+			ackNow(); //Sender resent EOF, so its ack was lost
+			return;
+		}
 
-		if (receivedEOF) //If received EOF, no more data expected
+		if (!parityEnabled()){
+			dataArrival(f);
+			return;
+		}
+		remember(f.copy()); //Parity may need it to rebuild a lost frame
+		dataArrival(f);
+		retryParity(f.getSeqno());
+	}
+	//Data or EOF frame received - deliver it if it is next in sequence
+	private void dataArrival(Frame f){
+		if (this.protocol == Protocol.SELECTIVE_REPEAT){
+			selectiveRepeatArrival(f);
 			return;
+		}
 
 		//Stop if frame arrived out of sequence
 		if (f.getSeqno() != frameExpected.get()){
 			System.out.println("*** ERROR - Frame Out of Sequence ***");
+			if (awaitingParity(f))
+				ackLater(); //Gap may be rebuilt before sender is told
+			else
+				ackNow(); //Tell sender where the gap is
 			return;
 		};
 
+		if (!deliver(f)){ //Not acked, so sender resends it
+			System.out.println("*** ERROR - Receive Queue Full ***");
+			ackNow(); //Tell sender its window is closed
+			return;
+		}
 		System.out.println("*** OK - Frame Expected ***");
-		frameExpected.getAndUpdate(incrementer);
+		frameExpected.getAndIncrement();
+		ackInSequence(1);
+	}	
+	//Take receive window advertised by peer unless an earlier ackno than
+	//the last one carried it - returns true if it moved the send limit
+	//without a new ackno.  Caller must hold buffer lock.
+	private boolean receiveWindowArrival(Frame f){
+		int advertised = f.getReceiveWindow();
+		if (advertised < 0 || 
+				(this.peerAdvertises && f.getAckno() - this.windowAckno < 0))
+			return false;
+		int limit = f.getAckno() + 1 + advertised;
+		boolean update = this.peerAdvertises && 
+				f.getAckno() == this.windowAckno && limit != this.sendLimit;
+		this.peerAdvertises = true;
+		this.sendLimit = limit;
+		this.windowAckno = f.getAckno();
+		return update;
+	}
+	//Determine if peer has no room for the next frame.  Caller must hold
+	//buffer lock.
+	private boolean windowClosed(){
+		return this.peerAdvertises && this.sendLimit - firstUnacked() <= 0;
+	}
+	//Get oldest frame not yet acked, or next to send if none.  Caller must
+	//hold buffer lock.
+	private int firstUnacked(){
+		return this.buffer.isEmpty() 
+				? nextFrameToSend.get() 
+				: this.buffer.first().getSeqno();
+	}
+	//Stop timers of frames the receiver reports holding so they are not
+	//resent.  They keep their place in buffer until the cumulative ack
+	//passes them, as the window cannot move beyond the first gap.
+	//Caller must hold buffer lock.
+	private void sackArrival(Frame f){
+		//Ignore stale SACK - its ackno must be just before the window
+		if (this.buffer.isEmpty() || 
+				this.buffer.first().getSeqno() != f.getAckno() + 1)
+			return;
+		//Bit 0 is the frame after the oldest in buffer
+		int frames = Math.min(f.getSackLength(), this.buffer.size() - 1);
+		Frame newest = null; //Last sent of the frames newly sacked
+		for (int index = 0; index < frames; index++){
+			Frame sent = this.buffer.get(index + 1);
+			if (!sent.sacked && f.isSacked(index)){
+				sent.sacked = true;
+				this.clock.stopTimer(sent.getSeqno());
+				if (newest == null || sent.sentAt > newest.sentAt)
+					newest = sent;
+			}
+		}
+		if (newest != null && !newest.resent)
+			this.rtt.sample(System.nanoTime() - newest.sentAt);
+	}
+	//Parity frame received - rebuild its group's lost frame if it is the
+	//only one, otherwise hold the parity in case more of the group arrives
+	private void parityArrival(Frame f){
+		this.announceCodecs = false; //Client has our codecs
+		int base = f.getSeqno();
+		int count = f.getParityCount();
+		int end = base + count;
+		if (count > DataLink.MAX_PARITY_GROUP || 
+				frameExpected.get() - base >= this.recent.length / 2)
+			return; //Not a group this side can hold, or long since passed
+		if (!this.parityArrived || end - this.parityEnd > 0)
+			this.parityEnd = end;
+		this.parityArrived = true;
+		this.lastGroup = count;
+		int missing = missing(base, count);
+		this.loss += ((missing << 16) / count - this.loss) / 8;
+		if (missing == 1)
+			rebuild(f);
+		else if (missing > 1){
+			Frame held = this.parities[this.nextParity];
+			if (held != null)
+				held.release();
+			this.parities[this.nextParity] = f.copy();
+			this.nextParity = (this.nextParity + 1) % this.parities.length;
+		}
+		//Too much of the group was lost - report the gap now
+		if (this.ackHeld && frameExpected.get() - end < 0)
+			ackNow();
+	}
+	//A frame of group first arrived - rebuild any held parity's group it
+	//leaves one frame short
+	private void retryParity(int seqno){
+		for (int i = 0; i < this.parities.length; i++){
+			Frame p = this.parities[i];
+			if (p == null || !DataLink.between(p.getSeqno(), seqno, 
+					p.getSeqno() + p.getParityCount()))
+				continue;
+			int missing = missing(p.getSeqno(), p.getParityCount());
+			if (missing > 1)
+				continue;
+			this.parities[i] = null;
+			if (missing == 1)
+				rebuild(p);
+			p.release();
+		}
+	}
+	//Rebuild the one frame of parity's group not received, and deliver it
+	//with any after it held out of sequence
+	private void rebuild(Frame parity){
+		int base = parity.getSeqno();
+		int count = parity.getParityCount();
+		byte[] block = new byte[parity.getPayloadLength()];
+		parity.getPayload(block, 0);
+		int lost = base;
+		for (int i = 0; i < count; i++){
+			Frame f = recentFrame(base + i);
+			if (f == null)
+				lost = base + i;
+			else if (f.getKind() != FrameKind.DATA || 
+					f.getBlockLength() > block.length)
+				return; //Not a group the sender made
+			else
+				f.xorBlock(block);
+		}
+		Frame f = Frame.rebuild(lost, block, block.length);
+		if (f == null){
+			System.out.println("*** ERROR - Frame Cannot Be Rebuilt ***");
+			return;
+		}
+		System.out.println("*** OK - Frame " + lost + " Rebuilt From Parity ***");
+		remember(f);
+		dataArrival(f);
+		//Go-Back-N dropped the frames after the gap, so replay them
+		while (this.protocol == Protocol.GO_BACK_N && !receivedEOF){
+			int expected = frameExpected.get();
+			Frame next = recentFrame(expected);
+			if (next == null)
+				break;
+			dataArrival(next);
+			if (frameExpected.get() == expected)
+				break; //Reader has no room - sender resends it
+		}
+	}
+	//Count frames of a group not received
+	private int missing(int base, int count){
+		int missing = 0;
+		for (int i = 0; i < count; i++)
+			if (recentFrame(base + i) == null)
+				missing++;
+		return missing;
+	}
+	//Keep copy of a frame received for rebuilding its group
+	private void remember(Frame f){
+		int slot = f.getSeqno() & (this.recent.length - 1);
+		Frame old = this.recent[slot];
+		this.recent[slot] = f;
+		if (old != null)
+			old.release();
+	}
+	//Get copy of frame seqno received lately, or null if there is none
+	private Frame recentFrame(int seqno){
+		Frame f = this.recent[seqno & (this.recent.length - 1)];
+		return (f != null && f.getSeqno() == seqno) ? f : null;
+	}
+	//Determine if the gap before a frame out of sequence may be rebuilt
+	//from a parity frame still to come, so the sender need not be told yet
+	private boolean awaitingParity(Frame f){
+		int ahead = f.getSeqno() - frameExpected.get();
+		return parityEnabled() && ahead > 0 && 
+				ahead < DataLink.MAX_PARITY_GROUP &&
+				(!this.parityArrived || 
+				frameExpected.get() - this.parityEnd >= 0);
+	}
+	//Hold the ack for a frame out of sequence until the rest of its group
+	//and its parity have had time to arrive
+	private void ackLater(){
+		this.ackHeld = true;
+		if (this.framesToAck.getAndIncrement() > 0)
+			return; //Timer already running
+		long delay = TimeUnit.MILLISECONDS.toNanos(DataLink.maxAckDelay);
+		if (this.arrivalGap != 0)
+			delay = Math.min(delay, Math.max(TimerWheel.DEFAULT_TICK, 
+					(this.lastGroup + 1) * this.arrivalGap));
+		this.clock.startAckTimer(delay);
+	}
+	//Hold frame in receive window and deliver any run now in sequence
+	private void selectiveRepeatArrival(Frame f){
+		if (this.receiveWindow == null) //Power of 2 so slots follow wrap
+			this.receiveWindow = new Frame[Integer.highestOneBit(
+					this.peerWindowSize * 2 - 1)];
+
+		int expected = frameExpected.get();
+		int tooFar = expected + this.peerWindowSize;
+		if (!DataLink.between(expected, f.getSeqno(), tooFar)){
+			System.out.println("*** ERROR - Frame Outside Receive Window ***");
+			ackNow(); //Duplicate of a frame already delivered
+			return;
+		}
+		if (this.receiveWindow[slot(f.getSeqno())] != null){
+			System.out.println("*** ERROR - Duplicate Frame ***");
+			deliverHeld(); //Reader may have made room since it arrived
+			ackNow();
+			return;
+		}
+		this.receiveWindow[slot(f.getSeqno())] = f.copy();
+		if (f.getSeqno() != expected){
+			System.out.println("*** OK - Frame Buffered Out of Sequence ***");
+			if (awaitingParity(f))
+				ackLater(); //Gap may be rebuilt before sender is told
+			else
+				ackNow(); //SACK reports it
+			return;
+		}
 
+		int delivered = deliverHeld();
+		if (delivered == 0){ //Held until resent frame finds room
+			System.out.println("*** ERROR - Receive Queue Full ***");
+			ackNow(); //Tell sender its window is closed
+			return;
+		}
+		System.out.println("*** OK - Frame Expected ***");
+		ackInSequence(delivered);
+	}
+	//Deliver frames held in receive window until the next gap, or until
+	//the reader has no room - returns number delivered
+	private int deliverHeld(){
+		int delivered = 0;
+		while (!receivedEOF && 
+				this.receiveWindow[slot(frameExpected.get())] != null){
+			int seqno = frameExpected.get();
+			Frame held = this.receiveWindow[slot(seqno)];
+			if (!deliver(held))
+				break; //Stays held
+			this.receiveWindow[slot(seqno)] = null;
+			held.release();
+			frameExpected.getAndIncrement();
+			delivered++;
+		}
+		return delivered;
+	}
+	//Pass frame which arrived in sequence up to socket - returns false if
+	//socket has no room for it
+	private boolean deliver(Frame f){
 		if (f.getKind() == FrameKind.DATA){
-			this.socket.fromDataLink(f.getPacket()); //Send data up to socket
+			if (f.getEncoding() != Codec.NONE)
+				this.announceCodecs = false; //Client has our codecs
+			Packet p = f.getPacket();
+			if (p == null){ //Sent again it would be no better
+				System.out.println("*** ERROR - Frame Cannot Be Decompressed ***");
+				return true;
+			}
+			if (this.socket.fromDataLink(p)) //Data up to socket
+				return true;
+			p.release();
+			return false;
 		} else if (f.getKind() == FrameKind.EOF){
 			this.receivedEOF = true;
 			this.sentEOF.set(true);
 			this.socket.eof(); 
 		}
-		
-	}	
+		return true;
+	}
+	//Reader has made room in socket's full input queue - deliver frames
+	//held for it on the thread which receives frames
+	void readerReady(){
+		this.physicalLayer.execute(new Runnable(){
+			@Override
+			public void run(){
+				if (receiveWindow != null)
+					deliverHeld();
+				ackNow(); //Advertise the room made
+			}
+		});
+	}
 	void damagedFrameArrival(){
 		System.out.println("<<< DAMAGED FRAME RECEIVED <<<");
 	}
-	//Received timeout event from Clock
+	//Received timeout event from Clock for frame seqno
 	void timeout(int seqno){
-		if (seqno == -1)
-			ackTimeout();
+		if (this.protocol == Protocol.SELECTIVE_REPEAT)
+			selectiveTimeout(seqno);
 		else
 			dataTimeout();
 	}
+	//If selective repeat timeout, resend only the frame that expired
+	private void selectiveTimeout(int seqno){
+		Frame resend = null;
+		this.lock.lock();
+		try {
+			resend = sentFrame(seqno);
+			if (resend == null || resend.sacked)
+				return; //Acked before timer could be stopped
+			//Frames lost from one window time out one after another, and
+			//only the oldest counts as the timeout event
+			if (resend == this.buffer.first()){
+				this.recovering = false; //Timer takes over recovery
+				this.dupAcks = 0;
+				this.rtt.backoff(); //Also spaces out probes of a closed window
+				if (this.congestionControl != null && !windowClosed())
+					this.congestionControl.onTimeout(this.buffer.size());
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		System.out.printf("%40s%n",
+				"*** TIMEOUT OCCURRED - resending frame: " + seqno + " ***");
+		sendFrame(resend);
+	}
 	//If data timeout, resend all frames in buffer
 	private void dataTimeout() {
-		List<Frame> resend;
-		synchronized(this.buffer){
+		this.lock.lock();
+		try {
 			if (this.buffer.size() == 0)
 				return; //Nothing to resend
 			System.out.printf("%40s%n",
 					"*** TIMEOUT OCCURRED - ack expected: " + 
-					this.buffer.get(0).getSeqno() + " ***");
+					this.buffer.first().getSeqno() + " ***");
+			this.recovering = false; //Timer takes over recovery
+			this.dupAcks = 0;
+			this.rtt.backoff(); //Also spaces out probes of a closed window
+			if (this.congestionControl != null && !windowClosed())
+				this.congestionControl.onTimeout(this.buffer.size());
+		} finally {
+			this.lock.unlock();
+		}
+		goBackN();
+	}
+	//Resend every frame in buffer the receiver does not hold
+	private void goBackN(){
+		int first;
+		int count;
+		this.lock.lock();
+		try {
+			if (this.buffer.isEmpty())
+				return;
 			retransmit = true; //Pause network layer
 			this.socket.disableNetworkLayer(true);
-			resend = new ArrayList<Frame>(this.buffer);
+			first = this.buffer.first().getSeqno();
+			count = this.buffer.size();
+		} finally {
+			this.lock.unlock();
 		}
 
-		//Resend all
-		for (Frame f : resend)
-			sendFrame(f);
+		//Resend all - lock is taken per frame so acks arriving meanwhile
+		//are not held up, and frames they remove are skipped
+		for (int i = 0; i < count; i++){
+			Frame f;
+			this.lock.lock();
+			try {
+				f = sentFrame(first + i);
+			} finally {
+				this.lock.unlock();
+			}
+			if (f != null && !f.sacked) //Receiver already holds sacked frames
+				sendFrame(f);
+		}
 		
 		//Unpause network layer
 		retransmit = false;
-		synchronized(this.buffer){
-			if (this.buffer.size() < maxSeq)		
+		this.lock.lock();
+		try {
+			if (this.buffer.size() < sendWindow())		
 				socket.disableNetworkLayer(false);
-				this.buffer.notifyAll();
-		}	
+				this.changed.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
 	}	
-	//Ack reeived frame
-	private void ackTimeout() {
-		sendAck();
+	//Ack received frames unless a data frame carried the ack first
+	void ackTimeout() {
+		if (this.framesToAck.getAndSet(0) > 0)
+			sendAck();
 	}	
+	//Frames were delivered in sequence - ack once enough are waiting, 
+	//otherwise make sure the ack timer is running
+	private void ackInSequence(int frames){
+		long now = System.nanoTime();
+		if (this.lastArrival != 0)
+			this.arrivalGap += (now - this.lastArrival - this.arrivalGap) / 8;
+		this.lastArrival = now;
+		int waiting = this.framesToAck.addAndGet(frames);
+		//Filling a gap or ending the stream is acked at once
+		//Sender must not wait on a whole window, so at least two acks
+		//are sent per window
+		int every = Math.min(DataLink.ackFrequency, 
+				Math.max(1, this.peerWindowSize / 2));
+		if (waiting >= every || frames > 1 || receivedEOF)
+			ackNow();
+		else if (waiting == frames) //First frame waiting starts timer
+			startAckTimer();
+	}
+	//Send ack without waiting - sender is recovering from a loss 
+	private void ackNow(){
+		if (this.framesToAck.getAndSet(0) > 0)
+			stopAckTimer();
+		sendAck();
+	}
 	//Get number of last received frame
 	private int getAckExpected(){
-		return (frameExpected.get() + maxSeq) % (maxSeq + 1);
+		return frameExpected.get() - 1;
+	}
+	//Get smoothed round trip time in ns, 0 if not yet measured
+	long getSrtt(){
+		return this.rtt.getSrtt();
+	}
+	//Get current retransmission timeout in ns
+	long getRto(){
+		return this.rtt.getRto();
+	}
+	//Get number of frames which may be sent now - congestion window and
+	//the room the receiver advertised can hold it below window size.  At
+	//least one frame may always be out, which probes a closed window.
+	//Caller must hold buffer lock.
+	private int sendWindow(){
+		int window = this.windowSize;
+		if (this.congestionControl != null)
+			window = Math.min(window, this.congestionControl.getWindow());
+		if (this.peerAdvertises)
+			window = Math.min(window, this.sendLimit - firstUnacked());
+		return Math.max(1, window);
+	}
+	//Find frame seqno in buffer, or null if it is not waiting for an ack.
+	//Caller must hold buffer lock.
+	private Frame sentFrame(int seqno){
+		Frame first = this.buffer.first();
+		if (first == null)
+			return null;
+		return this.buffer.get(seqno - first.getSeqno());
+	}
+	//Get index of seqno in receive window
+	private int slot(int seqno){
+		return seqno & (this.receiveWindow.length - 1);
 	}
-	//Determine if b comes between a and c in frame sequences
+	//Determine if b comes between a and c in frame sequences.  Sequence
+	//numbers are 32 bit serial numbers which wrap from -1 to 0, so b is
+	//between if it is fewer frames past a than c is.
 	private static boolean between(int a, int b, int c){
-		return (((a <= b) && (b < c)) || 
-				((c < a) && (a <= b)) || 
-				((b < c) && (c < a)));
+		return Integer.compareUnsigned(b - a, c - a) < 0;
 	}
-	//Start timer to make sure frame seqno is acked
-	private void startTimer(int seqno){
-		this.clock.startTimer(seqno, DataLink.dataTimeout);
+	//Start timer to make sure frame seqno is acked - counts from when
+	//the frame leaves after pacing, and receiver may hold its ack for up
+	//to maxAckDelay
+	private void startTimer(int seqno, long departure){
+		long wait = Math.max(0, departure - System.nanoTime());
+		this.clock.startTimer(seqno, wait + this.rtt.getRto() + 
+				TimeUnit.MILLISECONDS.toNanos(DataLink.maxAckDelay));
 	}
-	//Make sure to send ack if no data frame to piggyback on
+	//Make sure to send ack if no data frame to piggyback on - waits about
+	//two frame gaps so the next frame can share it, up to maxAckDelay
 	private void startAckTimer(){
-		this.clock.startTimer(-1, DataLink.ACK_TIMEOUT);
+		long delay = Math.min(
+				TimeUnit.MILLISECONDS.toNanos(DataLink.maxAckDelay),
+				Math.max(TimerWheel.DEFAULT_TICK, 2 * this.arrivalGap));
+		if (this.arrivalGap == 0) //Gap not known yet
+			delay = TimeUnit.MILLISECONDS.toNanos(DataLink.maxAckDelay);
+		this.clock.startAckTimer(delay);
 	}
 	//Stop ack timer when piggyback ack sent
 	private void stopAckTimer(){
-		this.clock.stopTimer(-1);
+		this.clock.stopAckTimer();
 	}
 	
 }
@@ -0,0 +1,237 @@
+package slidingwindow;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+/**
+ * The EventLoop class runs a small fixed set of I/O threads which receive
+ * datagrams for any number of PhysicalLayers and Listeners, and deliver
+ * frames passed in memory by LoopbackTransports.  Each thread owns a
+ * Selector and a direct receive buffer, and blocks in select() until a
+ * channel is readable or it is woken up to run a task or shut down.
+ */
+class EventLoop {
+	private static int threadCount =
+			Math.min(4, Runtime.getRuntime().availableProcessors());
+	private static EventLoop shared;
+	//Creates every long-lived thread, or null for platform threads
+	private static ThreadFactory threadFactory = null;
+	private static boolean threadsStarted = false;
+	private final Worker[] workers;
+	private final AtomicInteger next = new AtomicInteger(0);
+
+	/**
+	 * Set the number of I/O threads used by the shared event loop.  Must
+	 * be called before the first connection is made.
+	 * @param int threads
+	 * 	The number of threads
+	 */
+	static synchronized void setThreadCount(int threads){
+		if (threads < 1)
+			throw new IllegalArgumentException("Illegal threads: " + threads);
+		if (EventLoop.shared != null)
+			throw new IllegalStateException("Event loop already started");
+		EventLoop.threadCount = threads;
+	}
+	/**
+	 * Set the factory which creates the threads this package runs on -
+	 * the event loop's I/O threads, the shared TimerWheel and the reader
+	 * of each shared memory connection.  Must be called before the first
+	 * of them starts.
+	 * @param ThreadFactory factory
+	 * 	The factory, or null (default) for platform threads
+	 */
+	static synchronized void setThreadFactory(ThreadFactory factory){
+		if (EventLoop.threadsStarted)
+			throw new IllegalStateException("Threads already started");
+		EventLoop.threadFactory = factory;
+	}
+	//Create a daemon thread, not yet started, from the factory if one is set
+	static synchronized Thread newThread(Runnable task, String name){
+		EventLoop.threadsStarted = true;
+		Thread thread = (EventLoop.threadFactory != null)
+				? EventLoop.threadFactory.newThread(task)
+				: new Thread(task);
+		thread.setName(name);
+		if (!thread.isDaemon()) //Virtual threads are always daemons
+			thread.setDaemon(true);
+		return thread;
+	}
+	/**
+	 * Get the event loop shared by every PhysicalLayer in this JVM
+	 * @return EventLoop
+	 * 	The shared loop, started on first use
+	 */
+	static synchronized EventLoop getShared() throws IOException {
+		if (EventLoop.shared == null)
+			EventLoop.shared = new EventLoop(EventLoop.threadCount);
+		return EventLoop.shared;
+	}
+	//Start the given number of I/O threads
+	EventLoop(int threads) throws IOException {
+		this.workers = new Worker[threads];
+		for (int i = 0; i < threads; i++)
+			this.workers[i] = new Worker(i);
+	}
+	//Choose the next thread in turn to serve a connection
+	Worker assign(){
+		int index = Math.floorMod(next.getAndIncrement(), workers.length);
+		return this.workers[index];
+	}
+	//Assign a channel to the next thread in turn and start reading it
+	Worker register(DatagramChannel channel, Handler handler){
+		Worker worker = assign();
+		worker.execute(new Runnable(){
+			@Override
+			public void run(){
+				try {
+					channel.register(worker.selector,
+							SelectionKey.OP_READ, handler);
+				} catch (ClosedChannelException cce){
+					//Disconnected before registration - nothing to read
+				}
+			}
+		});
+		return worker;
+	}
+	//Stop all threads - wakes each selector so it exits immediately
+	void shutdown(){
+		for (Worker w : this.workers)
+			w.shutdown();
+	}
+
+	//Reads datagrams from a channel when the event loop finds it readable
+	abstract static class Handler {
+		//Receive up to max datagrams into buffer, using frame as a view
+		abstract void receive(ByteBuffer buffer, Frame frame, int max)
+				throws IOException;
+	}
+
+	//One I/O thread and the channels registered with its selector
+	static class Worker implements Runnable {
+		private static final int MAX_READS = 64; //Per channel per wakeup
+		private final Selector selector;
+		private final Thread thread;
+		//Work handed over from other threads, run between selects
+		private final Queue<Runnable> tasks =
+				new ConcurrentLinkedQueue<Runnable>();
+		private final ByteBuffer receiveBuffer =
+				ByteBuffer.allocateDirect(PhysicalLayer.MAX_PACKET_SIZE);
+		private final Frame frame = Frame.newView(); //Reused for every frame
+		private volatile boolean active = true;
+
+		private Worker(int id) throws IOException {
+			this.selector = Selector.open();
+			this.thread = EventLoop.newThread(this, "EventLoop-" + id);
+			this.thread.start();
+		}
+		//Run task on this thread and wake selector so it runs soon
+		void execute(Runnable task){
+			this.tasks.add(task);
+			this.selector.wakeup();
+		}
+		//Determine if caller is this worker's thread
+		boolean inLoop(){
+			return Thread.currentThread() == this.thread;
+		}
+		//Run task on this thread and wait until it is done
+		void executeAndWait(Runnable task){
+			if (inLoop()){
+				task.run();
+				return;
+			}
+			CountDownLatch done = new CountDownLatch(1);
+			execute(new Runnable(){
+				@Override
+				public void run(){
+					try {
+						task.run();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+			try {
+				done.await();
+			} catch (InterruptedException ie){
+				ie.printStackTrace();
+			}
+		}
+		//Stop reading a channel and close it, waiting until done so no
+		//more frames are delivered after return
+		void cancel(DatagramChannel channel){
+			executeAndWait(new Runnable(){
+				@Override
+				public void run(){
+					SelectionKey key = channel.keyFor(selector);
+					if (key != null)
+						key.cancel();
+					try {
+						channel.close();
+					} catch (IOException ioe){
+						ioe.printStackTrace();
+					}
+				}
+			});
+		}
+		//Exit the loop without waiting out a select
+		void shutdown(){
+			this.active = false;
+			this.selector.wakeup();
+		}
+		/**
+		 * Wait for readable channels and deliver their datagrams
+		 */
+		@Override
+		public void run(){
+			while (this.active){
+				try {
+					this.selector.select(); //Blocks - no polling
+				} catch (IOException ioe){
+					ioe.printStackTrace();
+				}
+				Runnable task;
+				while ((task = this.tasks.poll()) != null)
+					run(task);
+				Iterator<SelectionKey> i =
+						this.selector.selectedKeys().iterator();
+				while (i.hasNext()){
+					SelectionKey key = i.next();
+					i.remove();
+					if (key.isValid() && key.isReadable())
+						receive(key);
+				}
+			}
+			try { //Close channels still registered
+				for (SelectionKey key : this.selector.keys())
+					key.channel().close();
+				this.selector.close();
+			} catch (IOException ioe){
+				ioe.printStackTrace();
+			}
+		}
+		//Run a queued task - a failing task must not stop this thread, as
+		//every connection assigned to it would stop with it
+		private void run(Runnable task){
+			try {
+				task.run();
+			} catch (RuntimeException re){
+				re.printStackTrace();
+			}
+		}
+		//Hand a readable channel's datagrams to its handler - a bad
+		//datagram or connection must not stop the others on this thread
+		private void receive(SelectionKey key){
+			try {
+				((Handler)key.attachment()).receive(this.receiveBuffer,
+						this.frame, Worker.MAX_READS);
+			} catch (IOException ioe){
+				ioe.printStackTrace();
+			} catch (RuntimeException re){
+				re.printStackTrace();
+			}
+		}
+	}
+}
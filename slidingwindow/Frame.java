@@ -2,139 +2,444 @@ package slidingwindow;
 import java.util.*;
 import java.nio.*;
 import java.net.*;
+/**
+ * The Frame class is a view over an encoded frame in a ByteBuffer.  Fields
+ * are read and written in place with absolute little endian gets and puts,
+ * so a decoded frame is a flyweight over the receive buffer and is only
+ * valid until that buffer is reused.  Call copy() to keep a frame longer.
+ * Data frames and copies are stored in BufferPool buffers, which go back
+ * to the pool when release() is called.
+ * <p>
+ * A frame may be followed by an option trailer which its len field does
+ * not cover: chksum(2) len(2) then options of type(1) len(1) value.  The
+ * trailer has its own checksum, so a peer which does not know about it
+ * sees the plain frame.  A data frame's trailer can say how its payload
+ * is encoded, so a data frame whose trailer is damaged is damaged.
+ * <p>
+ * A parity frame is a data frame with a parity option, so only a peer
+ * which announced Codec.PARITY is sent one.  Its seqno is the first of the
+ * count data frames it covers, and its payload is the XOR of their blocks:
+ * payload length(2) codec(1) decoded length(2) then the payload, padded
+ * with zeros to the longest.  Any one lost frame of the group is the XOR
+ * of the parity and the blocks of the others.
+ */
 class Frame {
-	enum FrameKind {DATA, EOF, ACK;};
+	enum FrameKind {DATA, EOF, ACK, SACK, PARITY;};
 
 	private final static int ACK_LENGTH = 8;
 	final static int HEADER_SIZE = 12;
 	private final static ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+	//Field offsets within an encoded frame
+	private final static int CHKSUM = 0;
+	private final static int LEN = 2;
+	private final static int ACKNO = 4;
+	private final static int SEQNO = 8;
+	//Option trailer layout
+	final static int TRAILER_HEADER_SIZE = 4;
+	private final static int OPTION_HEADER_SIZE = 2;
+	private final static int MAX_OPTION_SIZE = 255;
+	private final static int OPTION_SACK = 1; //Bitmap of frames held
+	private final static int OPTION_WINDOW = 2; //Frames sender may send
+	private final static int OPTION_CODECS = 3; //Codecs sender restores
+	private final static int OPTION_ENCODING = 4; //Codec and decoded length
+	private final static int OPTION_RECEIVE_WINDOW = 5; //Frames receiver takes
+	private final static int OPTION_PARITY = 6; //Data frames parity covers
+	private final static int OPTION_LOSS = 7; //Share of frames receiver lost
+	private final static int ENCODING_SIZE = 3;
+	//Option added to a compressed data frame
+	private final static int ENCODING_OVERHEAD = Frame.OPTION_HEADER_SIZE + 
+			Frame.ENCODING_SIZE;
+	//Trailer every data and EOF frame carries for its receive window
+	final static int DATA_TRAILER_SIZE = Frame.TRAILER_HEADER_SIZE + 
+			Frame.OPTION_HEADER_SIZE + Integer.BYTES;
+	//Parity block header - payload length, codec and decoded length
+	private final static int BLOCK_HEADER_SIZE = 2 + Frame.ENCODING_SIZE;
+	private final static int PARITY_TRAILER_SIZE = Frame.TRAILER_HEADER_SIZE +
+			Frame.OPTION_HEADER_SIZE + 1;
+	//Most bytes a data or parity frame adds to its payload
+	final static int MAX_OVERHEAD = Frame.HEADER_SIZE + Math.max(
+			Frame.DATA_TRAILER_SIZE, 
+			Frame.BLOCK_HEADER_SIZE + Frame.PARITY_TRAILER_SIZE);
+	//Largest payload a frame can carry, compressed or restored
+	final static int MAX_PAYLOAD = PhysicalLayer.MAX_PACKET_SIZE -
+			Frame.MAX_OVERHEAD;
+	//Largest ack - header, trailer header, a full SACK option, codecs,
+	//receive window and loss
+	final static int MAX_ACK_SIZE = Frame.ACK_LENGTH + 
+			Frame.TRAILER_HEADER_SIZE + Frame.OPTION_HEADER_SIZE +
+			Frame.MAX_OPTION_SIZE + Frame.OPTION_HEADER_SIZE + 1 +
+			Frame.OPTION_HEADER_SIZE + Integer.BYTES +
+			Frame.OPTION_HEADER_SIZE + 1;
+	//Most frames beyond the cumulative ack one SACK option can cover
+	final static int MAX_SACK_FRAMES = Frame.MAX_OPTION_SIZE * Byte.SIZE;
+	private ByteBuffer data; //Buffer holding the encoded frame
+	private int offset; //Index of first frame byte in data
 	private FrameKind kind;
-	private short chksum;
-	private short len;
-	private int ackno;
-	private int seqno;
-	private Packet packet;
 	private boolean valid = true;
+	private int trailer = 0; //Size of option trailer, 0 if none
+	private Packet storage; //Pooled buffer holding data, null if not pooled
+	//Sender bookkeeping - not part of the encoded frame
+	volatile long sentAt = 0; //System.nanoTime of last transmission
+	volatile boolean resent = false; //No RTT sample from resent frames
+	volatile boolean sacked = false; //Receiver holds it - do not resend
+	volatile boolean acked = false; //Out of window - never resend
+	Frame parity; //Parity frame to send after this one's first transmission
 
 	private Frame(){} //Force use of static factory methods
 
 	/**
-	 * Decode a byte array and convert to a Frame object.
-	 * @param byte[] data
-	 * 	The data to decode
-	 * @return Frame 
-	 * 	The decoded frame
+	 * Create an empty frame to reuse as a view with wrap()
+	 * @return Frame
+	 * 	A frame which does not yet view any data
 	 */
-	static Frame decode(byte[] data){
-		Frame f = new Frame();
-		ByteBuffer bb;
-		int size;
-		int index = 0;
+	static Frame newView(){
+		return new Frame();
+	}
+	/**
+	 * Decode the frame starting at the buffer's position.
+	 * @param ByteBuffer data
+	 * 	The data to decode, limited to the received bytes
+	 * @return Frame
+	 * 	A new view of the decoded frame
+	 */
+	static Frame decode(ByteBuffer data){
+		return new Frame().wrap(data);
+	}
+	/**
+	 * Make this frame a view of the frame starting at the buffer's
+	 * position.  Nothing is copied or allocated.  The buffer's byte order
+	 * is set to little endian.
+	 * @param ByteBuffer data
+	 * 	The data to decode, limited to the received bytes
+	 * @return Frame
+	 * 	This frame
+	 */
+	Frame wrap(ByteBuffer data){
+		this.data = data.order(Frame.BYTE_ORDER);
+		this.offset = data.position();
+		this.kind = null;
+		this.valid = true;
+		this.trailer = 0;
 
-		//Get and set chksum
-		size = Short.SIZE / Byte.SIZE;	
-		bb = ByteBuffer.allocate(size).order(Frame.BYTE_ORDER);
-		bb.put(Arrays.copyOfRange(data, index, index + size));
-		bb.flip();
-		f.chksum = bb.getShort();
-		index += size;
-		//Get and set len
-		size = Short.SIZE / Byte.SIZE;	
-		bb = ByteBuffer.allocate(size).order(Frame.BYTE_ORDER);
-		bb.put(Arrays.copyOfRange(data, index, index + size));
-		bb.flip();
-		f.len = bb.getShort();
-		index += size;
-		//Get and set ackno
-		size = Integer.SIZE / Byte.SIZE;
-		bb = ByteBuffer.allocate(size).order(Frame.BYTE_ORDER);
-		bb.put(Arrays.copyOfRange(data, index, index + size));
-		bb.flip();
-		f.ackno = bb.getInt();
-		index += size;
-		
 		//Determine validity and frame type
-		int len = f.getLength();
-		if (len < Frame.ACK_LENGTH)
-			f.valid = false; //Too short
+		int available = data.limit() - this.offset;
+		int len = (available < Frame.ACK_LENGTH) ? 0 : this.getLength();
+		if (len < Frame.ACK_LENGTH || len > available)
+			this.valid = false; //Too short or truncated
 		else if (len == Frame.ACK_LENGTH)
-			f.kind = FrameKind.ACK;  //Ack length
+			this.kind = FrameKind.ACK;  //Ack length
 		else if (len < Frame.HEADER_SIZE)
-			f.valid = false; //Too long for ack, too short for data
-		else {
-			f.kind = (len == Frame.HEADER_SIZE) 
-					? FrameKind.EOF 
+			this.valid = false; //Too long for ack, too short for data
+		else
+			this.kind = (len == Frame.HEADER_SIZE)
+					? FrameKind.EOF
 					: FrameKind.DATA;
-			//Get and set seqno
-			size = Integer.SIZE / Byte.SIZE;
-			bb = ByteBuffer.allocate(size).order(Frame.BYTE_ORDER);
-			bb.put(Arrays.copyOfRange(data, index, index + size));
-			bb.flip();
-			f.seqno = bb.getInt(); 
-			//Get and set packet
-			byte[] payload = Arrays.copyOfRange(data, Frame.HEADER_SIZE, len);
-			f.packet = new Packet(payload);
-		}
-		f.validateChecksum(); //Ensure data not corrupted
-		return f;
+		if (this.valid)
+			this.validateChecksum(); //Ensure data not corrupted
+		if (this.valid && len < available)
+			this.readTrailer(available - len);
+		return this;
 	}
-
-	//Convert a Frame to a byte array for transmission as Datagram packet
-	byte[] encode() throws IllegalStateException {
-		int intLen = this.getLength();
-		byte[] output = new byte[intLen]; //Initialize array
-
-		try {
-			//Put all frame data in ByteBuffer
-			ByteBuffer bb = ByteBuffer.allocate(intLen).
-					order(Frame.BYTE_ORDER);
-			bb.putShort(this.chksum);
-			bb.putShort(this.len);
-			bb.putInt(this.ackno);
-			if (this.kind == FrameKind.DATA || this.kind == FrameKind.EOF){
-				bb.putInt(this.seqno);
-				bb.put(this.packet.decode());
-			}
-			//Get frame data from ByteBuffer into output array and return
-			bb.flip();
-			bb.get(output);
-		} catch (BufferUnderflowException bue){
-			throw new IllegalStateException(); //len corrupted
-		} catch (BufferOverflowException boe){
-			throw new IllegalStateException(); //len corrupted
-		}
-		return output;
+	/**
+	 * Write the encoded frame at the buffer's position and advance it.
+	 * @param ByteBuffer output
+	 * 	The buffer to encode into
+	 */
+	void encode(ByteBuffer output){
+		int len = this.getSize();
+		if (len > output.remaining())
+			throw new BufferOverflowException();
+		Frame.copy(this.data, this.offset, output, output.position(), len);
+		output.position(output.position() + len);
+	}
+	/**
+	 * Copy this frame into its own buffer so it stays valid after the
+	 * buffer it was decoded from is reused.
+	 * @return Frame
+	 * 	A frame with the same contents and its own storage
+	 */
+	Frame copy(){
+		Frame f = new Frame();
+		f.storage = BufferPool.getShared().acquire(this.getSize());
+		f.data = f.storage.buffer();
+		this.encode(f.data);
+		f.data.flip();
+		f.kind = this.kind;
+		f.valid = this.valid;
+		f.trailer = this.trailer;
+		return f;
 	}
 	//Create a new Ack frame with given ack number
 	static Frame newAck(int ackno){
+		return newAck(ackno, Frame.allocate(Frame.ACK_LENGTH));
+	}
+	//Encode a new Ack frame at the position of a reusable buffer
+	static Frame newAck(int ackno, ByteBuffer output){
+		Frame f = Frame.header(output, FrameKind.ACK, Frame.ACK_LENGTH);
+		f.data.putInt(f.offset + Frame.ACKNO, ackno);
+		f.seal();
+		return f;
+	}
+	/**
+	 * Encode an ack which also reports frames held beyond ackno, at the
+	 * position of a reusable buffer.  Bit i of the bitmap (low bit of
+	 * byte 0 first) is set if frame ackno + 2 + i was received.
+	 * @param int ackno
+	 * 	The last frame received in sequence
+	 * @param byte[] bitmap
+	 * 	The frames received out of sequence
+	 * @param int length
+	 * 	The number of bitmap bytes to send, at most MAX_OPTION_SIZE
+	 * @param ByteBuffer output
+	 * 	The buffer to encode into
+	 * @return Frame
+	 * 	The SACK frame, a view of output
+	 */
+	static Frame newSack(int ackno, byte[] bitmap, int length, 
+			ByteBuffer output){
+		if (length < 1 || length > Frame.MAX_OPTION_SIZE)
+			throw new IllegalArgumentException("Illegal SACK: " + length);
+		Frame f = newAck(ackno, output);
+		int start = Frame.startTrailer(output);
+		int value = Frame.putOption(output, start, Frame.OPTION_SACK, length);
+		output.put(value, bitmap, 0, length);
+		f.trailer = Frame.sealTrailer(output, start);
+		f.kind = FrameKind.SACK;
+		return f;
+	}
+	/**
+	 * Add an option announcing the codecs this side restores to an ack
+	 * just encoded at the end of output, which must have room for it.
+	 * @param int codecs
+	 * 	The Codec bits
+	 * @param ByteBuffer output
+	 * 	The buffer the ack was encoded into
+	 */
+	void addCodecs(int codecs, ByteBuffer output){
+		int value = this.addOption(Frame.OPTION_CODECS, 1, output);
+		output.put(value, (byte)codecs);
+		this.trailer = Frame.sealTrailer(output, this.offset + this.getLength());
+	}
+	/**
+	 * Add an option advertising the frames this side can take beyond the
+	 * ackno to an ack just encoded at the end of output, which must have
+	 * room for it.
+	 * @param int window
+	 * 	The number of frames
+	 * @param ByteBuffer output
+	 * 	The buffer the ack was encoded into
+	 */
+	void addReceiveWindow(int window, ByteBuffer output){
+		int value = this.addOption(Frame.OPTION_RECEIVE_WINDOW, Integer.BYTES,
+				output);
+		output.putInt(value, window);
+		this.trailer = Frame.sealTrailer(output, this.offset + this.getLength());
+	}
+	/**
+	 * Add an option reporting the share of data frames this side found
+	 * missing from parity groups to an ack just encoded at the end of
+	 * output, which must have room for it.
+	 * @param int loss
+	 * 	The share lost in 256ths, 0 to 255
+	 */
+	void addLoss(int loss, ByteBuffer output){
+		int value = this.addOption(Frame.OPTION_LOSS, 1, output);
+		output.put(value, (byte)Math.min(255, Math.max(0, loss)));
+		this.trailer = Frame.sealTrailer(output, this.offset + this.getLength());
+	}
+	/**
+	 * Replace the receive window carried by a data or EOF frame before it
+	 * is sent again, patching its trailer.  Frames without the option,
+	 * such as those from an older peer, are left as they are.
+	 * @param int window
+	 * 	The number of frames
+	 */
+	void setReceiveWindow(int window){
+		int option = this.findOption(Frame.OPTION_RECEIVE_WINDOW);
+		if (option < 0)
+			return;
+		int start = this.offset + this.getLength();
+		this.data.putInt(option + Frame.OPTION_HEADER_SIZE, window);
+		this.data.putShort(start + Frame.CHKSUM, (short)0);
+		this.data.putShort(start + Frame.CHKSUM, 
+				Checksum.calculate(this.data, start, this.trailer));
+	}
+	/**
+	 * Copy this frame with options offering the window size the sender
+	 * will use and the codecs it restores.  A client sends them on its
+	 * first frame.
+	 * @param int window
+	 * 	The most frames the sender has outstanding
+	 * @param int codecs
+	 * 	The Codec bits, 0 to leave out the option
+	 * @return Frame
+	 * 	A copy of this frame, without any trailer it had, plus the options
+	 */
+	Frame withOffer(int window, int codecs){
+		int len = this.getLength();
 		Frame f = new Frame();
-		f.kind = FrameKind.ACK;
-		f.ackno = ackno;
-		f.len = Frame.ACK_LENGTH;
-		f.chksum = f.calcChecksum();
-		return f;	
-	}
-	//Create a new Data frame
-	static Frame newDataFrame(int ackno, int seqno, Packet packet){
-		Frame f = new Frame();
-		f.kind = FrameKind.DATA;
-		f.ackno = ackno;
-		f.seqno = seqno;
-		f.packet = packet;
-		f.len = (short)((Frame.HEADER_SIZE + packet.length()));
-		f.chksum = f.calcChecksum();
+		f.data = Frame.allocate(len + Frame.DATA_TRAILER_SIZE + 
+				Frame.OPTION_HEADER_SIZE + Integer.BYTES +
+				Frame.OPTION_HEADER_SIZE + 1);
+		Frame.copy(this.data, this.offset, f.data, 0, len);
+		f.data.position(len);
+		Frame.startTrailer(f.data);
+		int value = Frame.putOption(f.data, len, Frame.OPTION_WINDOW, 
+				Integer.BYTES);
+		f.data.putInt(value, window);
+		if (codecs != Codec.NONE){
+			value = Frame.putOption(f.data, len, Frame.OPTION_CODECS, 1);
+			f.data.put(value, (byte)codecs);
+		}
+		Frame.putOption(f.data, len, Frame.OPTION_RECEIVE_WINDOW, 
+				Integer.BYTES);
+		f.trailer = Frame.sealTrailer(f.data, len);
+		f.data.position(0);
+		f.kind = this.kind;
+		f.valid = this.valid;
+		return f;
+	}
+	/**
+	 * Create a Data frame in a pooled buffer, compressing the payload if
+	 * that makes the frame smaller.  Its numbers are left for number(), so
+	 * the work can be done before the sender takes its lock, and its
+	 * receive window for setReceiveWindow().
+	 * @param Packet packet
+	 * 	The payload, which is copied so packet can be reused
+	 * @param int codec
+	 * 	The Codec to compress with, or NONE
+	 * @return Frame
+	 * 	The frame, to be numbered before it is used
+	 */
+	static Frame newDataFrame(Packet packet, int codec){
+		byte[] payload = packet.decode();
+		int packed = -1; //Compressed length, -1 to send raw
+		Packet scratch = null;
+		if (codec != Codec.NONE && packet.length() > Frame.ENCODING_OVERHEAD){
+			scratch = BufferPool.getShared().acquire(packet.length());
+			//Only worth sending if smaller once the trailer is added
+			packed = Codec.compress(codec, payload, packet.offset(), 
+					packet.length(), scratch.decode(), 
+					packet.length() - Frame.ENCODING_OVERHEAD - 1);
+		}
+		int len = Frame.HEADER_SIZE + (packed < 0 ? packet.length() : packed);
+		Packet storage = BufferPool.getShared().acquire(len + 
+				Frame.DATA_TRAILER_SIZE + 
+				(packed < 0 ? 0 : Frame.ENCODING_OVERHEAD));
+		Frame f = Frame.header(storage.buffer(), FrameKind.DATA, len);
+		f.storage = storage;
+		int at = f.data.arrayOffset() + f.offset + Frame.HEADER_SIZE;
+		if (packed < 0)
+			System.arraycopy(payload, packet.offset(), f.data.array(), at, 
+					packet.length());
+		else
+			System.arraycopy(scratch.decode(), 0, f.data.array(), at, packed);
+		if (scratch != null)
+			scratch.release();
+		int start = Frame.startTrailer(f.data);
+		if (packed >= 0){
+			int value = Frame.putOption(f.data, start, Frame.OPTION_ENCODING,
+					Frame.ENCODING_SIZE);
+			f.data.put(value, (byte)codec);
+			f.data.putShort(value + 1, (short)packet.length());
+		}
+		Frame.putOption(f.data, start, Frame.OPTION_RECEIVE_WINDOW, 
+				Integer.BYTES);
+		f.trailer = Frame.sealTrailer(f.data, start);
+		return f;
+	}
+	//Fill in numbers of a frame from newDataFrame, and seal it
+	void number(int ackno, int seqno){
+		this.data.putInt(this.offset + Frame.ACKNO, ackno);
+		this.data.putInt(this.offset + Frame.SEQNO, seqno);
+		this.seal();
+	}
+	/**
+	 * Create a parity frame in a pooled buffer.  Its ackno is filled in
+	 * with setAckno() when it is sent.
+	 * @param int seqno
+	 * 	The first data frame it covers
+	 * @param int count
+	 * 	The number of data frames it covers, 1 to 255
+	 * @param byte[] block
+	 * 	The XOR of their blocks
+	 * @param int length
+	 * 	The length of the longest block
+	 * @return Frame
+	 * 	The parity frame
+	 */
+	static Frame newParityFrame(int seqno, int count, byte[] block, 
+			int length){
+		int len = Frame.HEADER_SIZE + length;
+		Packet storage = BufferPool.getShared().acquire(len + 
+				Frame.PARITY_TRAILER_SIZE);
+		Frame f = Frame.header(storage.buffer(), FrameKind.PARITY, len);
+		f.storage = storage;
+		f.data.put(f.offset + Frame.HEADER_SIZE, block, 0, length);
+		f.number(0, seqno);
+		int start = Frame.startTrailer(f.data);
+		int value = Frame.putOption(f.data, start, Frame.OPTION_PARITY, 1);
+		f.data.put(value, (byte)count);
+		f.trailer = Frame.sealTrailer(f.data, start);
+		return f;
+	}
+	/**
+	 * Rebuild a lost data frame from its block, the XOR of its group's
+	 * parity and the blocks of every other frame in the group.  The frame
+	 * carries no ack and no receive window.
+	 * @param int seqno
+	 * 	The number of the lost frame
+	 * @param byte[] block
+	 * 	The recovered block
+	 * @param int length
+	 * 	The length of the parity block, which may be padded past the
+	 * 	recovered one
+	 * @return Frame
+	 * 	The data frame in a pooled buffer, or null if the block is not a
+	 * 	valid one
+	 */
+	static Frame rebuild(int seqno, byte[] block, int length){
+		if (length < Frame.BLOCK_HEADER_SIZE)
+			return null;
+		int payload = (block[0] & 0xff) | (block[1] & 0xff) << 8;
+		int codec = block[2] & 0xff;
+		int decoded = (block[3] & 0xff) | (block[4] & 0xff) << 8;
+		if (payload < 1 || payload > length - Frame.BLOCK_HEADER_SIZE ||
+				(codec == Codec.NONE && decoded != 0) ||
+				(codec != Codec.NONE && 
+				(decoded < 1 || decoded > Frame.MAX_PAYLOAD)))
+			return null;
+		int len = Frame.HEADER_SIZE + payload;
+		Packet storage = BufferPool.getShared().acquire(len + 
+				Frame.TRAILER_HEADER_SIZE + Frame.ENCODING_OVERHEAD);
+		Frame f = Frame.header(storage.buffer(), FrameKind.DATA, len);
+		f.storage = storage;
+		f.data.put(f.offset + Frame.HEADER_SIZE, block, 
+				Frame.BLOCK_HEADER_SIZE, payload);
+		f.number(0, seqno);
+		if (codec != Codec.NONE){
+			int start = Frame.startTrailer(f.data);
+			int value = Frame.putOption(f.data, start, Frame.OPTION_ENCODING,
+					Frame.ENCODING_SIZE);
+			f.data.put(value, (byte)codec);
+			f.data.putShort(value + 1, (short)decoded);
+			f.trailer = Frame.sealTrailer(f.data, start);
+		}
+		f.data.position(0);
 		return f;
 	}
 	//Create a new EOF frame
 	static Frame newEOFFrame(int ackno, int seqno){
-		Frame f = new Frame();
-		f.kind = FrameKind.EOF;
-		f.ackno = ackno;
-		f.seqno = seqno;
-		f.len = Frame.HEADER_SIZE;
-		byte[] packet = new byte[0]; //Empty data message
-		f.packet = new Packet(packet);
-		f.chksum = f.calcChecksum();
+		Frame f = Frame.header(Frame.allocate(Frame.HEADER_SIZE + 
+				Frame.DATA_TRAILER_SIZE), FrameKind.EOF, Frame.HEADER_SIZE);
+		f.data.putInt(f.offset + Frame.ACKNO, ackno);
+		f.data.putInt(f.offset + Frame.SEQNO, seqno);
+		f.seal();
+		int start = Frame.startTrailer(f.data);
+		Frame.putOption(f.data, start, Frame.OPTION_RECEIVE_WINDOW, 
+				Integer.BYTES);
+		f.trailer = Frame.sealTrailer(f.data, start);
+		f.data.position(0);
 		return f;
 	}
 
@@ -143,75 +448,316 @@ class Frame {
 	}
 
 	int getAckno(){
-		return this.ackno;
+		return this.data.getInt(this.offset + Frame.ACKNO);
+	}
+
+	//Replace piggybacked ackno, patching checksum without rescanning
+	void setAckno(int ackno){
+		int old = this.getAckno();
+		short chksum = this.data.getShort(this.offset + Frame.CHKSUM);
+		this.data.putInt(this.offset + Frame.ACKNO, ackno);
+		this.data.putShort(this.offset + Frame.CHKSUM, 
+				Checksum.update(chksum, old, ackno));
 	}
 
 	int getSeqno(){
-		return this.seqno;
+		if (this.isAck())
+			return 0; //Acks carry no sequence number
+		return this.data.getInt(this.offset + Frame.SEQNO);
 	}
 
 	int getLength(){
-		return this.len & 0xffff; //Convert to unsigned value
+		//Convert to unsigned value
+		return this.data.getShort(this.offset + Frame.LEN) & 0xffff;
 	}
-
+	//Get number of bytes sent for frame, including option trailer
+	int getSize(){
+		return this.getLength() + this.trailer;
+	}
+	//Determine if frame only acks - plain or selective
+	boolean isAck(){
+		return this.kind == FrameKind.ACK || this.kind == FrameKind.SACK;
+	}
+	//Get number of frames beyond ackno reported by a SACK frame
+	int getSackLength(){
+		int option = this.findOption(Frame.OPTION_SACK);
+		if (option < 0)
+			return 0;
+		return (this.data.get(option + 1) & 0xff) * Byte.SIZE;
+	}
+	//Determine if SACK frame reports frame ackno + 2 + index received
+	boolean isSacked(int index){
+		int option = this.findOption(Frame.OPTION_SACK);
+		if (option < 0 || index < 0 || index >= this.getSackLength())
+			return false;
+		int b = this.data.get(option + Frame.OPTION_HEADER_SIZE + 
+				index / Byte.SIZE);
+		return (b & (1 << (index % Byte.SIZE))) != 0;
+	}
+	//Get window size offered by sender, or -1 if frame has no offer
+	int getWindow(){
+		int option = this.findOption(Frame.OPTION_WINDOW);
+		if (option < 0 || this.data.get(option + 1) != Integer.BYTES)
+			return -1;
+		return this.data.getInt(option + Frame.OPTION_HEADER_SIZE);
+	}
+	//Get frames sender can take beyond ackno, or -1 if frame has no
+	//advertisement
+	int getReceiveWindow(){
+		int option = this.findOption(Frame.OPTION_RECEIVE_WINDOW);
+		if (option < 0 || this.data.get(option + 1) != Integer.BYTES)
+			return -1;
+		return this.data.getInt(option + Frame.OPTION_HEADER_SIZE);
+	}
+	//Get codecs announced by sender, or 0 if frame has no announcement
+	int getCodecs(){
+		int option = this.findOption(Frame.OPTION_CODECS);
+		if (option < 0 || this.data.get(option + 1) != 1)
+			return Codec.NONE;
+		return this.data.get(option + Frame.OPTION_HEADER_SIZE) & 0xff;
+	}
+	//Get codec payload was compressed with, or NONE if it is raw
+	int getEncoding(){
+		int option = this.findOption(Frame.OPTION_ENCODING);
+		if (option < 0 || this.data.get(option + 1) != Frame.ENCODING_SIZE)
+			return Codec.NONE;
+		return this.data.get(option + Frame.OPTION_HEADER_SIZE) & 0xff;
+	}
+	//Get number of data frames a parity frame covers, 0 if not parity
+	int getParityCount(){
+		int option = this.findOption(Frame.OPTION_PARITY);
+		if (option < 0 || this.data.get(option + 1) != 1)
+			return 0;
+		return this.data.get(option + Frame.OPTION_HEADER_SIZE) & 0xff;
+	}
+	//Get share of frames lost reported by receiver in 256ths, or -1 if
+	//frame has no report
+	int getLoss(){
+		int option = this.findOption(Frame.OPTION_LOSS);
+		if (option < 0 || this.data.get(option + 1) != 1)
+			return -1;
+		return this.data.get(option + Frame.OPTION_HEADER_SIZE) & 0xff;
+	}
+	//Get length of data frame's parity block
+	int getBlockLength(){
+		return Frame.BLOCK_HEADER_SIZE + this.getPayloadLength();
+	}
+	//XOR data frame's parity block into block, which must be long enough
+	void xorBlock(byte[] block){
+		int length = this.getPayloadLength();
+		int codec = this.getEncoding();
+		int decoded = 0;
+		if (codec != Codec.NONE)
+			decoded = this.data.getShort(this.findOption(Frame.OPTION_ENCODING)
+					+ Frame.OPTION_HEADER_SIZE + 1) & 0xffff;
+		block[0] ^= (byte)length;
+		block[1] ^= (byte)(length >>> 8);
+		block[2] ^= (byte)codec;
+		block[3] ^= (byte)decoded;
+		block[4] ^= (byte)(decoded >>> 8);
+		int start = this.offset + Frame.HEADER_SIZE;
+		if (this.data.hasArray()){
+			byte[] src = this.data.array();
+			start += this.data.arrayOffset();
+			for (int i = 0; i < length; i++)
+				block[Frame.BLOCK_HEADER_SIZE + i] ^= src[start + i];
+		} else
+			for (int i = 0; i < length; i++)
+				block[Frame.BLOCK_HEADER_SIZE + i] ^= this.data.get(start + i);
+	}
+	//Copy payload out of the frame into a pooled Packet, restoring it if
+	//it was compressed.  The caller must release the packet.  Returns
+	//null if the payload cannot be restored or claims a restored length
+	//no frame could carry.
 	Packet getPacket(){
-		return this.packet;
+		int codec = this.getEncoding();
+		int length = this.getPayloadLength();
+		if (codec == Codec.NONE){
+			Packet p = BufferPool.getShared().acquire(length);
+			this.getPayload(p.decode(), 0);
+			return p;
+		}
+		int option = this.findOption(Frame.OPTION_ENCODING);
+		int decoded = this.data.getShort(option + Frame.OPTION_HEADER_SIZE + 1)
+				& 0xffff;
+		if (decoded < 1 || decoded > Frame.MAX_PAYLOAD) //Peer sent garbage
+			return null;
+		Packet p = BufferPool.getShared().acquire(decoded);
+		Packet packed = null; //Copy of payload if not in a heap buffer
+		byte[] src;
+		int index;
+		if (this.data.hasArray()){
+			src = this.data.array();
+			index = this.data.arrayOffset() + this.offset + Frame.HEADER_SIZE;
+		} else {
+			packed = BufferPool.getShared().acquire(length);
+			this.getPayload(packed.decode(), 0);
+			src = packed.decode();
+			index = 0;
+		}
+		boolean restored = Codec.decompress(codec, src, index, length, 
+				p.decode(), decoded);
+		if (packed != null)
+			packed.release();
+		if (!restored){
+			p.release();
+			return null;
+		}
+		return p;
+	}
+	//Return pooled buffer once frame is no longer needed - the frame
+	//must not be used after
+	void release(){
+		Packet s = this.storage;
+		Frame p = this.parity;
+		this.storage = null;
+		this.parity = null;
+		if (s != null)
+			s.release();
+		if (p != null)
+			p.release(); //Never sent
+	}
+	//Get number of payload bytes carried by frame
+	int getPayloadLength(){
+		return this.isAck()
+				? 0
+				: this.getLength() - Frame.HEADER_SIZE;
+	}
+	//Copy payload into destination array starting at index
+	void getPayload(byte[] dest, int index){
+		int start = this.offset + Frame.HEADER_SIZE;
+		int len = this.getPayloadLength();
+		this.data.get(start, dest, index, len);
 	}
-	
+
 	boolean isValid(){
 		return this.valid;
 	}
+	//Allocate a buffer in frame byte order
+	static ByteBuffer allocate(int size){
+		return ByteBuffer.allocate(size).order(Frame.BYTE_ORDER);
+	}
+	//Start a frame at the buffer position and advance past it
+	private static Frame header(ByteBuffer output, FrameKind kind, int len){
+		if (len > output.remaining())
+			throw new BufferOverflowException();
+		Frame f = new Frame();
+		f.data = output.order(Frame.BYTE_ORDER);
+		f.offset = output.position();
+		f.kind = kind;
+		f.data.putShort(f.offset + Frame.CHKSUM, (short)0);
+		f.data.putShort(f.offset + Frame.LEN, (short)len);
+		output.position(f.offset + len);
+		return f;
+	}
+	//Fill in checksum once all other fields are written
+	private void seal(){
+		this.data.putShort(this.offset + Frame.CHKSUM, this.calcChecksum());
+	}
+	//Add an option to the trailer of a frame encoded at the end of output,
+	//starting a trailer if it has none - returns index of the value
+	private int addOption(int type, int length, ByteBuffer output){
+		int start = this.offset + this.getLength();
+		if (this.trailer == 0)
+			Frame.startTrailer(output);
+		return Frame.putOption(output, start, type, length);
+	}
+	//Start an empty trailer at the buffer position - returns its index
+	private static int startTrailer(ByteBuffer output){
+		int start = output.position();
+		if (start + Frame.TRAILER_HEADER_SIZE > output.limit())
+			throw new BufferOverflowException();
+		output.putShort(start + Frame.LEN, (short)Frame.TRAILER_HEADER_SIZE);
+		return start;
+	}
+	//Add an option with room for length value bytes to the trailer at
+	//start - returns index of the value for caller to fill in
+	private static int putOption(ByteBuffer output, int start, int type,
+			int length){
+		int size = output.getShort(start + Frame.LEN) & 0xffff;
+		int option = start + size;
+		size += Frame.OPTION_HEADER_SIZE + length;
+		if (start + size > output.limit())
+			throw new BufferOverflowException();
+		output.putShort(start + Frame.LEN, (short)size);
+		output.put(option, (byte)type);
+		output.put(option + 1, (byte)length);
+		return option + Frame.OPTION_HEADER_SIZE;
+	}
+	//Fill in checksum of trailer at start once its options are written,
+	//and advance buffer past it - returns trailer size
+	private static int sealTrailer(ByteBuffer output, int start){
+		int size = output.getShort(start + Frame.LEN) & 0xffff;
+		output.putShort(start + Frame.CHKSUM, (short)0);
+		output.putShort(start + Frame.CHKSUM, 
+				Checksum.calculate(output, start, size));
+		output.position(start + size);
+		return size;
+	}
+	//Copy bytes between buffers without changing their positions
+	private static void copy(ByteBuffer src, int srcIndex,
+			ByteBuffer dest, int destIndex, int len){
+		if (src.hasArray()){
+			dest.put(destIndex, src.array(), src.arrayOffset() + srcIndex, len);
+			return;
+		} else if (dest.hasArray()){
+			src.get(srcIndex, dest.array(), dest.arrayOffset() + destIndex, len);
+			return;
+		}
+		int i = 0; //Both direct - move a long at a time
+		for (; i + Long.BYTES <= len && src.order() == dest.order(); 
+				i += Long.BYTES)
+			dest.putLong(destIndex + i, src.getLong(srcIndex + i));
+		for (; i < len; i++)
+			dest.put(destIndex + i, src.get(srcIndex + i));
+	}
+	//Check option trailer after frame - a damaged or unknown trailer is
+	//ignored and the frame is used as if it had none
+	private void readTrailer(int available){
+		int start = this.offset + this.getLength();
+		if (available < Frame.TRAILER_HEADER_SIZE){
+			if (this.kind == FrameKind.DATA)
+				this.valid = false; //Payload may be encoded
+			return;
+		}
+		int size = this.data.getShort(start + Frame.LEN) & 0xffff;
+		if (size < Frame.TRAILER_HEADER_SIZE || size > available ||
+				Checksum.calculate(this.data, start, size) != 0){
+			if (this.kind == FrameKind.DATA)
+				this.valid = false; //Payload may be encoded
+			return;
+		}
+		this.trailer = size;
+		if (this.kind == FrameKind.ACK && 
+				this.findOption(Frame.OPTION_SACK) >= 0)
+			this.kind = FrameKind.SACK;
+		else if (this.kind == FrameKind.DATA && this.getParityCount() > 0)
+			this.kind = FrameKind.PARITY;
+	}
+	//Find index of option in trailer, or -1 if not present
+	private int findOption(int type){
+		int start = this.offset + this.getLength();
+		int end = start + this.trailer;
+		int i = start + Frame.TRAILER_HEADER_SIZE;
+		while (i + Frame.OPTION_HEADER_SIZE <= end){
+			int length = this.data.get(i + 1) & 0xff;
+			if (i + Frame.OPTION_HEADER_SIZE + length > end)
+				return -1; //Malformed
+			if (this.data.get(i) == type)
+				return i;
+			i += Frame.OPTION_HEADER_SIZE + length;
+		}
+		return -1;
+	}
 	//Make sure checksum of received packet is 0
 	private void validateChecksum(){
 		this.valid = (calcChecksum() == 0);
 	}
 	//Calculate frame checksum to ensure data quality
 	private short calcChecksum(){
-		byte[] data;
-		try {
-			data = this.encode();
-		} catch (IllegalStateException ise){
+		int len = this.getLength();
+		if (this.offset + len > this.data.limit())
 			return -1; //Frame corrupted
-		}
-		int[] values = new int[Integer.SIZE];
-
-		//Accumulate all 16 bit values into int array
-		int offset = 0;
-		for (byte b : data){
-			for (int i = 0; i < Byte.SIZE; i++){
-				int val = (int)Math.pow(2,i);
-				values[i + offset] += ((b & val) > 0 ? 1 : 0);
-			}
-			offset = Math.abs(-Byte.SIZE + offset);
-		}
-		//Propagate sums into higher bit slots
-		boolean overflow;
-		do {
-			for (int i = 0; i < Short.SIZE; i++){
-				values[i+1] += values[i] / 2;
-				values[i] %= 2;
-			}
-			overflow = (values[Short.SIZE] > 0);
-			if (overflow){ //Slot 15 carried into slot 16
-				//Continue to propagate up to 31
-				for (int i = Short.SIZE; i < Integer.SIZE; i++){
-					values[i+1] += values[i] / 2;
-					values[i] %= 2;
-				}
-				//Add upper 16 bits back into lower 16
-				for (int i = Short.SIZE; i < Integer.SIZE; i++){
-					values[i - Short.SIZE] += values[i];
-					values[i] = 0;
-				}
-			}
-		} while (overflow == true); //Do until no overflow
-
-		//Negate 16 bit result and return
-		short output = 0;
-		for (int i = 0; i < Short.SIZE; i++)
-			if (values[i] == 0)
-				output |= (int)Math.pow(2, i);
-		
-		return output;
+		return Checksum.calculate(this.data, this.offset, len);
 	}
 }
@@ -0,0 +1,280 @@
+package slidingwindow;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+/**
+ * The Impairment class describes the faults a simulated network adds to
+ * frames between DataLink and the wire: loss, including Gilbert-Elliott
+ * burst loss, damage, duplication, reordering, latency with jitter,
+ * random long delays, and a bottleneck link with a limited queue.
+ * <p>
+ * Each connection gets its own random number stream split from one seed,
+ * so a run with the same seed and traffic makes the same decisions.
+ * Delayed frames wait on the shared TimerWheel rather than a thread
+ * each.  Settings may be changed while connections are running.
+ */
+public class Impairment {
+	/**
+	 * Shapes of the jitter added to latency
+	 */
+	public enum Jitter {
+		UNIFORM, //0 up to twice the jitter
+		EXPONENTIAL, //Mean of the jitter, with a long tail
+		NORMAL; //Standard deviation of the jitter, either side of latency
+	};
+	private SplittableRandom seeds = new SplittableRandom();
+	//Probabilities are fractions between 0 and 1
+	private volatile double drop = 0; //Loss while in good state
+	private volatile double goodToBad = 0; //Gilbert-Elliott transitions
+	private volatile double badToGood = 1;
+	private volatile double badDrop = 0; //Loss while in bad state
+	private volatile double damage = 0;
+	private volatile double duplicate = 0;
+	private volatile double reorder = 0;
+	private volatile long reorderDelay = 0; //ns
+	private volatile double delay = 0; //Chance of a long random delay
+	private volatile long maxDelay = TimeUnit.SECONDS.toNanos(4); //ns
+	private volatile long latency = 0; //ns
+	private volatile long jitter = 0; //ns
+	private volatile Jitter jitterShape = Jitter.UNIFORM;
+	private volatile long bandwidth = 0; //Bottleneck bits per second
+	private volatile int queueLimit = Integer.MAX_VALUE; //Bottleneck bytes
+
+	/**
+	 * Seed the random numbers of connections made from now on.  Each
+	 * connection draws its own stream, in the order they are made.
+	 * @param long seed
+	 * 	The seed
+	 */
+	public synchronized void setSeed(long seed){
+		this.seeds = new SplittableRandom(seed);
+	}
+	/**
+	 * Set the percentage of frames to lose, or with burst loss the
+	 * percentage lost while the link is in its good state
+	 * @param double percent
+	 * 	The percentage value between 0-100
+	 */
+	public void setDropPercent(double percent){
+		this.drop = Impairment.fraction(percent);
+	}
+	/**
+	 * Lose frames in bursts using a Gilbert-Elliott model.  The link moves
+	 * between a good and a bad state before each frame, and the bad state
+	 * loses frames at its own rate.
+	 * @param double goodToBad
+	 * 	The percentage chance of going from good to bad
+	 * @param double badToGood
+	 * 	The percentage chance of going from bad to good - 100 divided by
+	 * 	this is the average burst length
+	 * @param double badDrop
+	 * 	The percentage of frames lost while bad
+	 */
+	public void setBurstLoss(double goodToBad, double badToGood, 
+			double badDrop){
+		this.goodToBad = Impairment.fraction(goodToBad);
+		this.badToGood = Impairment.fraction(badToGood);
+		this.badDrop = Impairment.fraction(badDrop);
+	}
+	/**
+	 * Set the percentage of frames to damage by flipping one bit
+	 * @param double percent
+	 * 	The percentage value between 0-100
+	 */
+	public void setDamagePercent(double percent){
+		this.damage = Impairment.fraction(percent);
+	}
+	/**
+	 * Set the percentage of frames to deliver twice
+	 * @param double percent
+	 * 	The percentage value between 0-100
+	 */
+	public void setDuplicatePercent(double percent){
+		this.duplicate = Impairment.fraction(percent);
+	}
+	/**
+	 * Hold back some frames so those sent after them arrive first
+	 * @param double percent
+	 * 	The percentage of frames to hold back
+	 * @param int ms
+	 * 	How long they are held in milliseconds
+	 */
+	public void setReorder(double percent, int ms){
+		this.reorder = Impairment.fraction(percent);
+		this.reorderDelay = Impairment.nanos(ms);
+	}
+	/**
+	 * Delay some frames by a random time, as PhysicalLayer.setPctToDelay
+	 * @param double percent
+	 * 	The percentage of frames to delay
+	 * @param int maxMs
+	 * 	The longest delay in milliseconds
+	 */
+	public void setDelay(double percent, int maxMs){
+		if (maxMs < 1)
+			throw new IllegalArgumentException("Illegal delay: " + maxMs);
+		this.delay = Impairment.fraction(percent);
+		this.maxDelay = Impairment.nanos(maxMs);
+	}
+	/**
+	 * Set the time every frame takes to cross the network
+	 * @param int ms
+	 * 	The one way latency in milliseconds
+	 * @param int jitterMs
+	 * 	The variation in latency in milliseconds
+	 * @param Jitter shape
+	 * 	How the variation is distributed
+	 */
+	public void setLatency(int ms, int jitterMs, Jitter shape){
+		if (shape == null)
+			throw new IllegalArgumentException("Jitter shape required");
+		this.latency = Impairment.nanos(ms);
+		this.jitter = Impairment.nanos(jitterMs);
+		this.jitterShape = shape;
+	}
+	/**
+	 * Pass frames through a bottleneck link which sends one at a time at
+	 * the given rate.  Frames which find the queue full are lost.
+	 * @param long bitsPerSecond
+	 * 	The link rate, or 0 for no bottleneck
+	 * @param int queueBytes
+	 * 	The most bytes waiting for the link
+	 */
+	public void setBandwidth(long bitsPerSecond, int queueBytes){
+		if (bitsPerSecond < 0 || queueBytes < 0)
+			throw new IllegalArgumentException("Illegal bandwidth");
+		this.bandwidth = bitsPerSecond;
+		this.queueLimit = queueBytes;
+	}
+	//Get a new random number stream for a connection
+	synchronized SplittableRandom newRandom(){
+		return this.seeds.split();
+	}
+	//Convert percentage to a probability
+	private static double fraction(double percent){
+		if (!(percent >= 0 && percent <= 100))
+			throw new IllegalArgumentException("Illegal percent: " + percent);
+		return percent / 100.0;
+	}
+	//Convert non-negative milliseconds to nanoseconds
+	private static long nanos(int ms){
+		if (ms < 0)
+			throw new IllegalArgumentException("Illegal time: " + ms);
+		return TimeUnit.MILLISECONDS.toNanos(ms);
+	}
+
+	//The impairments applied to one connection's datagrams
+	static class Link {
+		private final Impairment impairment;
+		private final PhysicalLayer physicalLayer; //Sends datagrams
+		private final SplittableRandom random;
+		private final TimerWheel wheel = TimerWheel.getShared();
+		private boolean bad = false; //Gilbert-Elliott state
+		private long linkFree = 0; //When bottleneck finishes sending
+
+		Link(Impairment impairment, PhysicalLayer physicalLayer){
+			this.impairment = impairment;
+			this.physicalLayer = physicalLayer;
+			this.random = impairment.newRandom();
+		}
+		/**
+		 * Apply impairments to a datagram and send it, now or once it
+		 * has been delayed.  The packet is damaged in place, and is
+		 * retained if it must wait.
+		 * @param Packet p
+		 * 	The datagram
+		 */
+		synchronized void send(Packet p) throws IOException {
+			Impairment config = this.impairment;
+			if (lose(config)){
+				System.out.printf("%80s%n","*** Frame Dropped ***");
+				return;
+			}
+			long now = System.nanoTime();
+			long arrival = now;
+			if (config.bandwidth > 0){ //Wait in bottleneck queue
+				long start = Math.max(now, this.linkFree);
+				long queued = (start - now) * config.bandwidth 
+						/ TimeUnit.SECONDS.toNanos(Byte.SIZE);
+				if (queued + p.length() > config.queueLimit){
+					System.out.printf("%80s%n","*** Queue Full - Frame Dropped ***");
+					return;
+				}
+				this.linkFree = start + p.length() * 
+						TimeUnit.SECONDS.toNanos(Byte.SIZE) / config.bandwidth;
+				arrival = this.linkFree;
+			}
+			arrival += config.latency + jitter(config);
+			if (chance(config.reorder)){
+				System.out.printf("%80s%n","*** Frame Reordered ***");
+				arrival += config.reorderDelay;
+			}
+			if (chance(config.delay)){
+				long extra = this.random.nextLong(config.maxDelay);
+				System.out.printf("%80s%n","*** Frame Delayed " + 
+						TimeUnit.NANOSECONDS.toMillis(extra) + " ms ***");
+				arrival += extra;
+			}
+			if (chance(config.damage)){ //Flip random bit
+				System.out.printf("%80s%n","*** Data Corrupted ***");
+				int index = p.offset() + this.random.nextInt(p.length());
+				int bit = this.random.nextInt(Byte.SIZE);
+				p.decode()[index] ^= (byte)(1 << bit);
+			}
+			int copies = 1;
+			if (chance(config.duplicate)){
+				System.out.printf("%80s%n","*** Frame Duplicated ***");
+				copies = 2;
+			}
+			for (int i = 0; i < copies; i++){
+				if (arrival <= now)
+					this.physicalLayer.wire(p);
+				else
+					later(p, arrival);
+			}
+		}
+		//Decide whether to lose frame, moving between good and bad state
+		private boolean lose(Impairment config){
+			if (config.goodToBad > 0)
+				this.bad = this.bad 
+						? !chance(config.badToGood)
+						: chance(config.goodToBad);
+			return chance(this.bad ? config.badDrop : config.drop);
+		}
+		//Choose variation in latency - total latency is never negative
+		private long jitter(Impairment config){
+			if (config.jitter == 0)
+				return 0;
+			switch (config.jitterShape){
+				case EXPONENTIAL:
+					return (long)(-Math.log(1 - this.random.nextDouble())
+							* config.jitter);
+				case NORMAL:
+					return Math.max(-config.latency, (long)(
+							this.random.nextGaussian() * config.jitter));
+				default:
+					return this.random.nextLong(2 * config.jitter);
+			}
+		}
+		//Hold on to datagram and send it when the wheel reaches arrival
+		private void later(Packet p, long arrival){
+			Packet held = p.retain();
+			this.wheel.schedule(new TimerWheel.Timeout(null, 0){
+				@Override
+				void expire(){
+					try {
+						physicalLayer.wire(held);
+					} catch (IOException ioe){
+						ioe.printStackTrace();
+					} finally {
+						held.release();
+					}
+				}
+			}, arrival);
+		}
+		//Determine odds of event occurring
+		private boolean chance(double odds){
+			return odds > 0 && this.random.nextDouble() < odds;
+		}
+	}
+}
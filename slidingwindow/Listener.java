@@ -0,0 +1,138 @@
+package slidingwindow;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+/**
+ * The Listener class owns the channel bound by a ServerSocket.  Datagrams
+ * are routed to the PhysicalLayer of the client address they came from,
+ * and the first valid frame from a new address creates a connection which
+ * waits in the accept backlog.
+ */
+class Listener extends EventLoop.Handler {
+	private final DatagramChannel channel;
+	private final EventLoop.Worker worker; //Thread reading channel
+	//Connections by client address
+	private final Map<SocketAddress, PhysicalLayer> connections =
+			new ConcurrentHashMap<SocketAddress, PhysicalLayer>();
+	//Connections not yet returned by accept()
+	private final Deque<Socket> backlog = new ArrayDeque<Socket>();
+	private final ReentrantLock lock = new ReentrantLock(); //Guards backlog
+	//Signalled when a connection joins the backlog or accepting stops
+	private final Condition changed = this.lock.newCondition();
+	private final int backlogSize;
+	private volatile boolean accepting = true;
+
+	//Bind port and start routing incoming datagrams
+	Listener(int port, int backlogSize) throws IOException {
+		if (backlogSize < 1)
+			throw new IllegalArgumentException("Illegal backlog: " + backlogSize);
+		this.backlogSize = backlogSize;
+		this.channel = DatagramChannel.open();
+		try { //Throws BindException if the port is already in use
+			this.channel.bind(new InetSocketAddress(port));
+			this.channel.configureBlocking(false);
+		} catch (IOException ioe){
+			this.channel.close();
+			throw ioe;
+		}
+		this.worker = EventLoop.getShared().register(this.channel, this);
+	}
+	//Wait for a new connection
+	Socket accept() throws IOException {
+		this.lock.lock();
+		try {
+			while (this.backlog.isEmpty() && this.accepting)
+				try {
+					this.changed.await();
+				} catch (InterruptedException ie){
+					throw new InterruptedIOException();
+				}
+			if (!this.accepting)
+				throw new SocketException("ServerSocket closed");
+			return this.backlog.poll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	//Called by EventLoop when channel is readable - route each datagram
+	//to the connection for its sender
+	@Override
+	void receive(ByteBuffer buffer, Frame frame, int max) throws IOException {
+		for (int i = 0; i < max; i++){
+			buffer.clear();
+			SocketAddress from = this.channel.receive(buffer);
+			if (from == null)
+				return; //Nothing left to read
+			buffer.flip();
+			Frame f = frame.wrap(buffer);
+			PhysicalLayer physicalLayer = this.connections.get(from);
+			if (physicalLayer == null)
+				physicalLayer = newConnection(from, f);
+			if (physicalLayer != null)
+				physicalLayer.deliver(f);
+		}
+	}
+	//First frame from client - add connection to backlog if there is room
+	private PhysicalLayer newConnection(SocketAddress from, Frame f)
+			throws IOException {
+		//Only a client's first frame can open a connection - a stray
+		//resend from a closed one must not
+		if (!f.isValid() || f.isAck() || 
+				f.getKind() == Frame.FrameKind.PARITY || 
+				f.getSeqno() != DataLink.initialSeqno)
+			return null; //Wait for first frame to be resent
+		this.lock.lock();
+		try {
+			if (!this.accepting || this.backlog.size() >= this.backlogSize)
+				return null; //Client will resend once backlog drains
+			//Client offers its window size and codecs on its first frame
+			Socket socket = new Socket(this, from, f.getWindow(), 
+					f.getCodecs());
+			this.backlog.add(socket);
+			this.changed.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+		return this.connections.get(from);
+	}
+	//Route frames from client to the given PhysicalLayer
+	void add(SocketAddress client, PhysicalLayer physicalLayer){
+		this.connections.put(client, physicalLayer);
+	}
+	//Stop routing frames from client - none are delivered after return
+	void remove(SocketAddress client){
+		this.worker.executeAndWait(new Runnable(){
+			@Override
+			public void run(){
+				connections.remove(client);
+			}
+		});
+		if (!this.accepting && this.connections.isEmpty())
+			this.worker.cancel(this.channel); //Last one out closes channel
+	}
+	//Run task on the thread which reads listening channel
+	void execute(Runnable task){
+		this.worker.execute(task);
+	}
+	//Send datagram to client through listening channel
+	void send(ByteBuffer data, SocketAddress client) throws IOException {
+		this.channel.send(data, client);
+	}
+	//Stop accepting - connections already made keep running until
+	//they disconnect
+	void close(){
+		this.lock.lock();
+		try {
+			this.accepting = false;
+			this.changed.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+		if (this.connections.isEmpty())
+			this.worker.cancel(this.channel);
+	}
+}
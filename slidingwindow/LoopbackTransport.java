@@ -0,0 +1,119 @@
+package slidingwindow;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+/**
+ * The LoopbackTransport class joins two PhysicalLayers in the same JVM
+ * without a socket, so the protocol can run between components of one
+ * process, or be measured apart from the cost of the kernel's UDP stack.
+ * The pooled packet PhysicalLayer encodes a frame into is retained, not
+ * copied, and the other side decodes the frame in place from it before
+ * releasing it.  Frames wait in a queue drained in batches on the
+ * EventLoop thread serving the other side.  Only a frame reaching an empty queue hands that thread a task and
+ * wakes its Selector, so a burst of frames costs one wakeup and nothing is
+ * allocated per frame.  Frames are delivered in the order they were sent,
+ * and frames sent to a closed side are dropped as a datagram to a closed
+ * port would be.
+ */
+class LoopbackTransport implements Transport {
+	private static final int MAX_BATCH = 64; //Frames delivered per task
+	private final PhysicalLayer physicalLayer; //Frames are delivered to
+	private final EventLoop.Worker worker; //Thread delivering frames
+	private final Frame frame = Frame.newView(); //Used on worker thread only
+	//Frames sent by peer waiting for worker, guarded by their own lock
+	private final ArrayDeque<Packet> arrived = new ArrayDeque<Packet>();
+	private boolean draining = false; //Drain task is queued, guarded by arrived
+	private final Runnable drain = new Runnable(){
+		@Override
+		public void run(){
+			drain();
+		}
+	};
+	private LoopbackTransport peer;
+	private volatile boolean active = true;
+
+	/**
+	 * Join two PhysicalLayers so frames sent by either arrive at the other
+	 * @param PhysicalLayer a
+	 * 	One side
+	 * @param PhysicalLayer b
+	 * 	The other side
+	 * @return LoopbackTransport[]
+	 * 	The transports of a then b
+	 */
+	static LoopbackTransport[] pair(PhysicalLayer a, PhysicalLayer b)
+			throws IOException {
+		LoopbackTransport[] pair = {new LoopbackTransport(a),
+				new LoopbackTransport(b)};
+		pair[0].peer = pair[1];
+		pair[1].peer = pair[0];
+		return pair;
+	}
+	//Deliver frames to physicalLayer on the next EventLoop thread in turn
+	private LoopbackTransport(PhysicalLayer physicalLayer) throws IOException {
+		this.physicalLayer = physicalLayer;
+		this.worker = EventLoop.getShared().assign();
+	}
+	//Queue frame for the peer, waking the peer's worker only if its queue
+	//was idle
+	@Override
+	public void send(Packet p){
+		LoopbackTransport to = this.peer;
+		if (!to.active)
+			return;
+		boolean wake;
+		synchronized(to.arrived){
+			to.arrived.add(p.retain()); //Released once delivered
+			wake = !to.draining;
+			to.draining = true;
+		}
+		if (wake)
+			to.worker.execute(to.drain);
+	}
+	//Run task on the thread which delivers this side's frames
+	@Override
+	public void execute(Runnable task){
+		this.worker.execute(task);
+	}
+	//Stop delivering - waits for the worker so no frames arrive after
+	@Override
+	public void close(){
+		this.worker.executeAndWait(new Runnable(){
+			@Override
+			public void run(){
+				active = false;
+			}
+		});
+	}
+	//Deliver queued frames on worker thread, leaving the rest for another
+	//task after a batch so other connections on the worker get a turn
+	private void drain(){
+		for (int n = 0; n < LoopbackTransport.MAX_BATCH; n++){
+			Packet p;
+			synchronized(this.arrived){
+				p = this.arrived.poll();
+				if (p == null){ //Next frame sent must wake worker again
+					this.draining = false;
+					return;
+				}
+			}
+			try {
+				arrival(p);
+			} catch (RuntimeException re){ //Queue must keep draining
+				re.printStackTrace();
+			} finally {
+				p.release();
+			}
+		}
+		this.worker.execute(this.drain);
+	}
+	//Frame sent by peer is ready on worker thread - it is only valid
+	//during this call
+	private void arrival(Packet p){
+		if (!this.active)
+			return;
+		ByteBuffer data = p.buffer();
+		data.position(p.offset()).limit(p.offset() + p.length());
+		this.physicalLayer.deliver(this.frame.wrap(data));
+	}
+}
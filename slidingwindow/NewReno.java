@@ -0,0 +1,67 @@
+package slidingwindow;
+/**
+ * The NewReno class is loss based congestion control in the manner of TCP
+ * Reno (RFC 5681).  The window doubles every round trip in slow start and
+ * grows by one frame per round trip after reaching the slow start
+ * threshold.  A timeout halves the threshold and starts over from one
+ * frame, while a loss found by duplicate acks only halves the window.
+ */
+public class NewReno implements CongestionControl {
+	static final int INITIAL_WINDOW = 4; //Frames (RFC 3390)
+	static final int MIN_THRESHOLD = 2;
+	private int window = NewReno.INITIAL_WINDOW;
+	private int threshold = Integer.MAX_VALUE; //Slow start threshold
+	private int acked = 0; //Frames acked toward next window increase
+	/**
+	 * Get the number of frames which may be sent and not yet acked
+	 * @return int
+	 * 	The congestion window in frames
+	 */
+	@Override
+	public int getWindow(){
+		return this.window;
+	}
+	/**
+	 * Grow window - by each frame acked in slow start, otherwise by one
+	 * frame once a full window has been acked
+	 */
+	@Override
+	public void onAck(int frames, long rtt, int inFlight){
+		if (this.window < this.threshold){ //Slow start
+			this.window = Math.min(this.window + frames, this.threshold);
+			return;
+		}
+		this.acked += frames; //Congestion avoidance
+		if (this.acked >= this.window){
+			this.acked -= this.window;
+			this.window++;
+		}
+	}
+	/**
+	 * Halve threshold and restart slow start from one frame
+	 */
+	@Override
+	public void onTimeout(int inFlight){
+		this.threshold = Math.max(NewReno.MIN_THRESHOLD, inFlight / 2);
+		this.window = 1;
+		this.acked = 0;
+	}
+	/**
+	 * Halve window and threshold - frames still arriving show the path
+	 * is not blocked, so there is no need to start over from one frame
+	 */
+	@Override
+	public void onFastRetransmit(int inFlight){
+		this.threshold = Math.max(NewReno.MIN_THRESHOLD, inFlight / 2);
+		this.window = this.threshold;
+		this.acked = 0;
+	}
+	/**
+	 * Get the window at which slow start ends
+	 * @return int
+	 * 	The slow start threshold in frames
+	 */
+	public int getThreshold(){
+		return this.threshold;
+	}
+}
@@ -2,24 +2,82 @@ package slidingwindow;
 import java.net.*;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 /**
  * The Packet class is nothing more than an abstraction of
- * a byte array payload
+ * a byte array payload, or of a range within one.  A packet from a
+ * BufferPool is reference counted and goes back to the pool once every
+ * holder has released it.
  */
 public class Packet {
 	private byte[] payload;
+	private int offset;
+	private int length;
+	private final BufferPool pool; //Null unless pooled
+	private final ByteBuffer buffer; //View of whole payload array if pooled
+	private final AtomicInteger references = new AtomicInteger(1);
 
 	//Create a new Packet from the given byte array
 	Packet(byte[] payload){
+		this(payload, 0, payload.length);
+	}
+	//Create a new Packet viewing a range of the given byte array
+	Packet(byte[] payload, int offset, int length){
+		if (offset < 0 || length < 0 || offset + length > payload.length)
+			throw new IndexOutOfBoundsException();
 		this.payload = payload;
+		this.offset = offset;
+		this.length = length;
+		this.pool = null;
+		this.buffer = null;
+	}
+	//Create an empty pooled Packet with a new array of the given capacity
+	Packet(BufferPool pool, int capacity){
+		this.payload = new byte[capacity];
+		this.pool = pool;
+		this.buffer = ByteBuffer.wrap(this.payload).order(ByteOrder.LITTLE_ENDIAN);
 	}
 
-	//Return the Packet as a byte array
+	//Return the array holding the Packet - payload starts at offset()
 	byte[] decode(){
 		return this.payload;
 	}
+	//Get the index of the first payload byte
+	int offset(){
+		return this.offset;
+	}
 	//Get the length of the payload
 	int length(){
-		return payload.length;
+		return this.length;
+	}
+	//Get size of pooled array
+	int capacity(){
+		return this.payload.length;
+	}
+	//Get the reusable view of a pooled packet's whole array, cleared
+	ByteBuffer buffer(){
+		this.buffer.clear();
+		return this.buffer;
+	}
+	//Set up a pooled packet taken from the pool for a new payload
+	void reuse(int length){
+		this.offset = 0;
+		this.length = length;
+		this.references.set(1);
+	}
+	//Add a holder which must also release the packet
+	Packet retain(){
+		if (this.references.getAndIncrement() <= 0)
+			throw new IllegalStateException("Packet already released");
+		return this;
+	}
+	//Drop a holder - the last one returns a pooled packet to its pool, and
+	//the packet must not be used after that
+	void release(){
+		int left = this.references.decrementAndGet();
+		if (left < 0)
+			throw new IllegalStateException("Packet released twice");
+		if (left == 0 && this.pool != null)
+			this.pool.release(this);
 	}
 }
@@ -1,33 +1,51 @@
 package slidingwindow;import java.io.*; import java.util.*;
 import java.net.*;
+import java.util.concurrent.*;
 /**
  * The PhysicalLayer class receives frames from DataLink and sends them to 
  * a recepient, and receives Datagram packets and hands them to DataLink.
+ * Frames are paced and impaired here, then carried by a Transport - UDP
+ * datagrams read by the shared EventLoop, so any number of PhysicalLayers
+ * are served by a few I/O threads, an in-memory loopback, or rings in
+ * memory shared with a process on the same host.  A server
+ * connection shares the channel of the Listener which accepted it.
  */
-public class PhysicalLayer implements Runnable {
-	//Slow down sending of frames (to monitor log output on screen)
-	final static int SEND_DELAY = 2000;
+public class PhysicalLayer {
+	/**
+	 * How datagrams are spaced out when sent
+	 */
+	public enum Pacing {
+		NONE, //As fast as the caller sends
+		TOKEN_BUCKET, //Average bitrate set with setPacingRate
+		DEMO; //One frame per send delay, to follow log output on screen
+	};
+	private static Pacing pacing = Pacing.NONE;
+	private static long pacingRate = 100000000; //Bits per second
+	private static int sendDelay = 2000; //DEMO - ms between frames
 	private static int windowSize = 8;
+	//Largest window - well under the half of the 32 bit sequence space
+	//which serial number comparison allows
+	static final int MAX_WINDOW_SIZE = 1 << 20;
 	static final int MAX_PACKET_SIZE = 65507; 
-	private static final int TIMEOUT = 20;
-	private static double pctToDrop = 0;
-	private static double pctToDamage = 0;
-	private static double pctToDelay = 0;
-	private static final Random random = new Random();
-	private final Thread thread = new Thread(this);
+	private static Impairment impairment = new Impairment();
 	private final DataLink dataLink;
-	private final DatagramSocket datagramSocket;
-	private InetAddress address;
-	private int port;
+	private Transport transport; //Carries frames to and from peer
+	private final Impairment.Link link = new Impairment.Link(
+			PhysicalLayer.impairment, this);
+	private final SendScheduler scheduler = new SendScheduler(this,
+			PhysicalLayer.pacing, PhysicalLayer.pacingRate, 
+			PhysicalLayer.sendDelay);
 	private volatile boolean active = true;
-	private volatile boolean waitForConnection = false;
 
 	/**
-	 * Set the number of frames that can fit in the network medium
+	 * Set the number of frames that can fit in the network medium.  A
+	 * server uses the smaller of its own window and the client's.
 	 * @param int windowSize
-	 * 	The number of frames in the window
+	 * 	The number of frames in the window, up to MAX_WINDOW_SIZE
 	 */
 	public static void setWindowSize(int windowSize){
+		if (windowSize < 1 || windowSize > PhysicalLayer.MAX_WINDOW_SIZE)
+			throw new IllegalArgumentException("Illegal window: " + windowSize);
 		PhysicalLayer.windowSize = windowSize;
 	}
 
@@ -39,15 +57,93 @@ public class PhysicalLayer implements Runnable {
 	public static int getWindowSize(){
 		return PhysicalLayer.windowSize;
 	}
+	/**
+	 * Choose how connections made from now on space out their datagrams
+	 * @param Pacing pacing
+	 * 	NONE (default), TOKEN_BUCKET or DEMO
+	 */
+	public static void setPacing(Pacing pacing){
+		if (pacing == null)
+			throw new IllegalArgumentException("Pacing required");
+		PhysicalLayer.pacing = pacing;
+	}
+	/**
+	 * Set the average rate of TOKEN_BUCKET pacing
+	 * @param long bitsPerSecond
+	 * 	The rate in bits per second
+	 */
+	public static void setPacingRate(long bitsPerSecond){
+		if (bitsPerSecond < 1)
+			throw new IllegalArgumentException("Illegal rate: " + bitsPerSecond);
+		PhysicalLayer.pacingRate = bitsPerSecond;
+	}
+	/**
+	 * Set the time between frames with DEMO pacing
+	 * @param int delay
+	 * 	The delay in milliseconds
+	 */
+	public static void setSendDelay(int delay){
+		if (delay < 1)
+			throw new IllegalArgumentException("Illegal delay: " + delay);
+		PhysicalLayer.sendDelay = delay;
+	}
+	/**
+	 * Get the time between frames with DEMO pacing
+	 * @return int
+	 * 	The delay in milliseconds, 0 unless DEMO pacing is chosen
+	 */
+	public static int getSendDelay(){
+		return (PhysicalLayer.pacing == Pacing.DEMO) 
+				? PhysicalLayer.sendDelay
+				: 0;
+	}
+	/**
+	 * Set the number of threads which receive datagrams for all
+	 * connections.  Must be called before the first connection.
+	 * @param int threads
+	 * 	The number of I/O threads
+	 */
+	public static void setIoThreads(int threads){
+		EventLoop.setThreadCount(threads);
+	}
+	/**
+	 * Set the factory which creates the few long-lived threads all
+	 * connections share, and the reader of each shared memory connection.
+	 * On a JVM with virtual threads, Thread.ofVirtual().factory() runs
+	 * them all as virtual threads.  Must be called before the first
+	 * connection.
+	 * @param ThreadFactory factory
+	 * 	The factory, or null (default) for platform threads
+	 */
+	public static void setThreadFactory(ThreadFactory factory){
+		EventLoop.setThreadFactory(factory);
+	}
+	/**
+	 * Set the network faults applied to connections made from now on
+	 * @param Impairment impairment
+	 * 	The faults to apply
+	 */
+	public static void setImpairment(Impairment impairment){
+		if (impairment == null)
+			throw new IllegalArgumentException("Impairment required");
+		PhysicalLayer.impairment = impairment;
+	}
+	/**
+	 * Get the network faults applied to new connections, which can be
+	 * changed in place
+	 * @return Impairment
+	 * 	The faults to apply
+	 */
+	public static Impairment getImpairment(){
+		return PhysicalLayer.impairment;
+	}
 	/**
 	 * Set the percentage of frames to lose during transmission
 	 * @param int percent
 	 * 	The percentage value between 0-100
 	 */
 	public static void setPctToDrop(int percent){
-		if (percent < 0 || percent > 100)
-			throw new IllegalArgumentException("Illegal percent: " + percent);
-		PhysicalLayer.pctToDrop = percent / 100.0;
+		PhysicalLayer.impairment.setDropPercent(percent);
 	}
 	/**
 	 * Set the percentage of frames to damage during transmission
@@ -55,181 +151,102 @@ public class PhysicalLayer implements Runnable {
 	 * 	The percentage value between 0-100
 	 */
 	public static void setPctToDamage(int percent){
-		if (percent < 0 || percent > 100)
-			throw new IllegalArgumentException("Illegal percent: " + percent);
-		PhysicalLayer.pctToDamage = percent / 100.0;
+		PhysicalLayer.impairment.setDamagePercent(percent);
 	}
 	/**
-	 * Set the percentage of frames to delay during transmission
+	 * Set the percentage of frames to delay during transmission, by up to
+	 * twice the send delay
 	 * @param int percent
 	 * 	The percentage value between 0-100
 	 */
 	public static void setPctToDelay(int percent){
-		if (percent < 0 || percent > 100)
-			throw new IllegalArgumentException("Illegal percent: " + percent);
-		PhysicalLayer.pctToDelay = percent / 100.0;
+		PhysicalLayer.impairment.setDelay(percent, 
+				2 * PhysicalLayer.sendDelay);
 	}
 
-	//Server
-	static PhysicalLayer connectAndWait(DataLink dataLink, int fromPort) 
-			throws IOException {
-
-		PhysicalLayer output = new PhysicalLayer(dataLink, fromPort);
-		output.waitForConnection = true;
-		synchronized(output){
-			//Will be released by incoming packet
-			while (output.waitForConnection){
-				try { 
-					output.wait();
-				} catch (InterruptedException ie){
-					ie.printStackTrace();
-				}
-			}
-		} 
+	//Server - frames from client arrive through listener
+	static PhysicalLayer accept(DataLink dataLink, Listener listener,
+			SocketAddress client){
+		PhysicalLayer output = new PhysicalLayer(dataLink);
+		output.transport = new UdpTransport(output, listener, client);
+		listener.add(client, output);
 		return output;
 	}
 	//Client
 	static PhysicalLayer connect(DataLink dataLink, int fromPort, 
 			InetAddress toAddress, int toPort) throws IOException {
 
-		PhysicalLayer output = new PhysicalLayer(dataLink, fromPort);
-		output.address = toAddress;
-		output.port = toPort;
+		PhysicalLayer output = new PhysicalLayer(dataLink);
+		output.transport = new UdpTransport(output, fromPort, 
+				new InetSocketAddress(toAddress, toPort));
+		return output;
+	}
+	//Join two DataLinks in this JVM - returns the PhysicalLayer of a then b
+	static PhysicalLayer[] loopback(DataLink a, DataLink b) throws IOException {
+		PhysicalLayer[] output = {new PhysicalLayer(a), new PhysicalLayer(b)};
+		LoopbackTransport[] pair = LoopbackTransport.pair(output[0], 
+				output[1]);
+		output[0].transport = pair[0];
+		output[1].transport = pair[1];
 		return output;
 	}
-	private PhysicalLayer(DataLink dataLink, int fromPort) throws IOException {
+	//Join DataLink to a peer through shared memory and start receiving
+	static PhysicalLayer attach(DataLink dataLink, 
+			SharedMemoryTransport transport){
+		PhysicalLayer output = new PhysicalLayer(dataLink);
+		output.transport = transport;
+		transport.start(output);
+		return output;
+	}
+	private PhysicalLayer(DataLink dataLink){
 		this.dataLink = dataLink;
-		this.datagramSocket = new DatagramSocket(fromPort);	
-		datagramSocket.setSoTimeout(PhysicalLayer.TIMEOUT); //Don't block
-		//Ensure port is available before starting thread
-		//receive() will end after a single TIMEOUT or throw BindException 
-		//if the port is already in use
-		try {
-			receive();
-		} catch (BindException be){
-			throw be;  //Port is in use - send back up to Socket
-		} catch (SocketTimeoutException se){
-			//Timeout occurred - port available
-		}
-		this.thread.start(); //Start listening for frames
 	}
-	//Set inactive and wait for thread to complete
+	//Stop receiving and close transport - no frames arrive after return
 	void disconnect() throws IOException {
 		this.active = false;
-		try {
-			this.thread.join();
-		} catch (InterruptedException ie){
-			ie.printStackTrace();
-		}
+		this.transport.close();
 	}
-	/**
-	 * Receive frames over connection and deliver them to DataLink
-	 */
-	@Override	
-	public void run(){
-		while (this.active){
-			try {
-				Frame f = receive();
-				if (f.isValid())
-					dataLink.frameArrival(f);
-				else 
-					dataLink.damagedFrameArrival();
-			} catch (SocketTimeoutException se){
-				//Expected from Socket timeout - give chance to check 
-				//if still active
-			} catch (IOException ioe){
-				ioe.printStackTrace();
-			}
-		}
+	//Run task on the thread which delivers this connection's frames
+	void execute(Runnable task){
+		this.transport.execute(task);
 	}
-	//Receive Datagram packet and convert to a Frame
-	private Frame receive() throws IOException {
-		byte[] data = new byte[PhysicalLayer.MAX_PACKET_SIZE];
-		DatagramPacket datagramPacket = new DatagramPacket(data, data.length);
-		datagramSocket.receive(datagramPacket);
-		Frame f = Frame.decode(datagramPacket.getData());
-		if (this.waitForConnection){
-			this.port = datagramPacket.getPort();
-			this.address = datagramPacket.getAddress();
-			PhysicalLayer.setWindowSize(f.getAckno() + 1);
-			this.waitForConnection = false;
-			synchronized(this){
-				this.notifyAll();
-			}
-		}
-		return f;
-	}	
-	//Receive Frame from DataLink, subject it to network errors	and send
-	void fromDataLink(Frame f){
-		
-		if (dropFrame()){ //If drop frame, just stop
-			System.out.printf("%80s%n","*** Frame Dropped ***");
-			return;
-		}
-
-		byte[] data = f.encode();
-		if (damageFrame()){ //Get frame as byte array and flip random bit
-			System.out.printf("%80s%n","*** Data Corrupted ***");
-			PhysicalLayer.damage(data);
-		}
-
-		final int delay;
-		if (delayFrame()){ //Delay delivery for random duration up to timeout
-			delay = PhysicalLayer.random.nextInt(2 * PhysicalLayer.SEND_DELAY);
-			System.out.printf("%80s%n","*** Frame Delayed " + delay + " ms ***");
-		} else
-			delay = 0;
-
-		try { //Send frames at time interval in order to monitor output
-			Thread.sleep(PhysicalLayer.SEND_DELAY);
-		} catch (InterruptedException ie){
-			ie.printStackTrace();
+	//Hand frame to DataLink - it is a view which is only valid during 
+	//the call
+	void deliver(Frame f){
+		if (!this.active)
 			return;
+		if (f.isValid())
+			dataLink.frameArrival(f);
+		else 
+			dataLink.damagedFrameArrival();
+	}
+	//Receive Frame from DataLink and send it through the impaired network.
+	//Returns the System.nanoTime at which the frame leaves, which can be
+	//later than now if it waits to be paced.
+	long fromDataLink(Frame f){
+		//Encoded into a pooled buffer rather than one held per connection,
+		//so an idle connection holds no send memory
+		Packet p = BufferPool.getShared().acquire(f.getSize());
+		try {
+			f.encode(p.buffer()); //Frame stays intact for resending
+			//Hand frame to network when pacing allows - whatever holds
+			//it past the call retains the packet rather than copying it
+			return this.scheduler.send(p);
+		} catch (IOException ioe){
+			ioe.printStackTrace();
+		} finally {
+			p.release();
 		}
-
-		DatagramPacket datagramPacket = new DatagramPacket(
-				data, f.getLength(), address, port); 
-
-		if (delay > 0){ //If frame is delayed, create thread responsible
-			new Thread(){ //for sleeping the duration then sending frame
-				@Override
-				public void run(){
-					try {
-						Thread.sleep(delay);
-						PhysicalLayer.this.datagramSocket.send(datagramPacket);
-					} catch (Exception e){
-						e.printStackTrace();
-					}
-				}
-			}.start();
-		} else
-			try { //Deliver frame to recipient
-				this.datagramSocket.send(datagramPacket);
-			} catch (IOException ioe){
-				ioe.printStackTrace();
-			}
-	}
-	//Decide whether to drop frame
-	private static boolean dropFrame(){
-		return chance(PhysicalLayer.pctToDrop);
-	}
-	//Decide whether to damage frame data
-	private static boolean damageFrame(){
-		return chance(PhysicalLayer.pctToDamage);
-	}
-	//Decide whether to delay frame delivery
-	private static boolean delayFrame(){
-		return chance(PhysicalLayer.pctToDelay);
-	}
-	//Determine odds of event occurring
-	private static boolean chance(double odds){
-		return (random.nextDouble() < odds);
-	}
-	//Choose a random bit from a random byte and flip value
-	private static void damage(byte[] data){
-		int byteIndex = PhysicalLayer.random.nextInt(data.length);
-		int bitIndex = PhysicalLayer.random.nextInt(Byte.SIZE);
-		byte b = data[byteIndex];
-		data[byteIndex] = (byte)(b ^ (1 << bitIndex));
+		return System.nanoTime();
+	}
+	//Send datagram into the network, which may lose, damage or delay it
+	void transmit(Packet p) throws IOException {
+		if (this.active)
+			this.link.send(p);
+	}
+	//Put datagram on the wire now unless disconnected
+	void wire(Packet p) throws IOException {
+		if (this.active)
+			this.transport.send(p);
 	}
 }
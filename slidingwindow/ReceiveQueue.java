@@ -0,0 +1,126 @@
+package slidingwindow;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+/**
+ * The ReceiveQueue class passes packets delivered in sequence from the
+ * thread receiving a connection's frames to the thread reading its
+ * Socket.  It is a bounded ring for one producer and one consumer which
+ * takes no locks: each side owns one index, and the reader is only parked
+ * when the queue is empty and unparked when a packet makes it non-empty.
+ * A full queue refuses packets rather than blocking the receive thread, so
+ * a slow reader holds at most capacity packets, and the free space is what
+ * the receiver advertises to its sender.  Once the queue has been full,
+ * the reader runs a callback when half of it is free again, so the
+ * producer can offer what it held back and advertise the new space
+ * without opening the window one packet at a time.
+ */
+class ReceiveQueue {
+	private final Packet[] packets;
+	private final int mask; //Ring size - 1, ring size is a power of 2
+	private final int capacity; //Most packets queued
+	private final int threshold; //Free space which reopens a full queue
+	private final AtomicBoolean full = new AtomicBoolean(false);
+	private final AtomicLong head = new AtomicLong(0); //Next to take
+	private final AtomicLong tail = new AtomicLong(0); //Next to fill
+	private final AtomicInteger bytes = new AtomicInteger(0); //Queued
+	private volatile Thread waiter; //Reader parked while empty
+	private volatile boolean closed = false; //No more packets will come
+	private final Runnable onSpace; //Run when a full queue has room again
+
+	//Create a queue which holds capacity packets
+	ReceiveQueue(int capacity, Runnable onSpace){
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Illegal capacity: " + capacity);
+		this.packets = new Packet[Integer.highestOneBit(capacity * 2 - 1)];
+		this.mask = this.packets.length - 1;
+		this.capacity = capacity;
+		this.threshold = Math.max(1, capacity / 2);
+		this.onSpace = onSpace;
+	}
+	/**
+	 * Add packet for the reader - producer only
+	 * @param Packet p
+	 * 	The packet
+	 * @return boolean
+	 * 	True if queued, false if the queue is full
+	 */
+	boolean offer(Packet p){
+		long t = this.tail.get();
+		long h = this.head.get();
+		if (t - h >= this.capacity){
+			filled();
+			return false;
+		}
+		this.packets[(int)t & this.mask] = p;
+		this.bytes.addAndGet(p.length());
+		this.tail.set(t + 1); //Publishes packet
+		//Reader can only be parked if it found the queue empty - it checks
+		//again after setting waiter, so one of the two sees the other
+		if (this.head.get() == t)
+			wake();
+		if (t + 1 - h >= this.capacity)
+			filled();
+		return true;
+	}
+	//Producer found queue full - reader reports room once it takes enough.
+	//The reader may have emptied the queue before seeing the flag, so
+	//check again after setting it.
+	private void filled(){
+		this.full.set(true);
+		reopen();
+	}
+	//Run callback once if queue was full and enough is now free
+	private void reopen(){
+		if (free() >= this.threshold && this.full.compareAndSet(true, false))
+			this.onSpace.run();
+	}
+	/**
+	 * Take the oldest packet, waiting while the queue is empty - consumer
+	 * only
+	 * @return Packet
+	 * 	The packet, or null once the queue is closed and empty
+	 */
+	Packet take(){
+		long h = this.head.get();
+		while (this.tail.get() == h){
+			if (this.closed && this.tail.get() == h)
+				return null;
+			this.waiter = Thread.currentThread();
+			if (this.tail.get() == h && !this.closed)
+				LockSupport.park(this); //May return early - check again
+			this.waiter = null;
+		}
+		int index = (int)h & this.mask;
+		Packet p = this.packets[index];
+		this.packets[index] = null; //Let packet be collected
+		this.bytes.addAndGet(-p.length());
+		this.head.set(h + 1); //Frees slot for producer
+		if (this.full.get())
+			reopen();
+		return p;
+	}
+	//Determine if a packet can be taken without waiting
+	boolean isEmpty(){
+		return this.tail.get() == this.head.get();
+	}
+	//Get number of packets which can be offered without being refused
+	int free(){
+		return (int)Math.max(0, 
+				this.capacity - (this.tail.get() - this.head.get()));
+	}
+	//Get number of payload bytes queued
+	int bytes(){
+		return this.bytes.get();
+	}
+	//No more packets will be offered - reader takes those queued, then null
+	void close(){
+		this.closed = true;
+		wake();
+	}
+	//Unpark reader if it is waiting
+	private void wake(){
+		Thread t = this.waiter;
+		if (t != null)
+			LockSupport.unpark(t);
+	}
+}
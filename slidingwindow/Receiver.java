@@ -3,8 +3,8 @@ import java.io.*;
 import java.util.*;
 public class Receiver {
 	public final static int PORT = 49152; 
-	private final static int BUFFER_SIZE = 1024; //Doesn't matter
 	private final Socket socket;
+	private static DataLink.Protocol protocol = DataLink.Protocol.GO_BACK_N;
 //	private final ServerSocket server;
 	/**
 	 * Program entry point - creates an instance of Receiver which
@@ -13,6 +13,8 @@ public class Receiver {
 	 */
 	public static void main(String[] args){
 		try {
+			//Send slowly enough to follow log output on screen
+			PhysicalLayer.setPacing(PhysicalLayer.Pacing.DEMO);
 			if (args.length > 0) //Get optional arguments and apply settings
 				parseArgs(args);
 
@@ -28,7 +30,9 @@ public class Receiver {
 			receiver.receiveFile();
 		} catch (IllegalArgumentException iae){
 			System.out.println("Options:\n\t" +
-				"-p\tPacket size (bytes)\n\t-t\tTimeout(ms)");
+				"-p\tPacket size (bytes)\n\t-t\tTimeout(ms)\n\t" +
+				"-d\tSend delay (ms, 0 for none)\n\t" +
+				"-r\tSelective repeat (0/1)");
 		} catch (IOException e){
 			e.printStackTrace();
 		}
@@ -39,6 +43,7 @@ public class Receiver {
 	public Receiver() throws IOException {
 		ServerSocket server = new ServerSocket(Receiver.PORT);
 		this.socket = server.accept(); 
+		this.socket.setProtocol(Receiver.protocol);
 	}
 	/**
 	 * Receive a file from Sender through socket connection
@@ -48,16 +53,9 @@ public class Receiver {
 		OutputStream outstream = new BufferedOutputStream(
 				new FileOutputStream(outputFile));			
 
-		BufferedInputStream instream =	
-				new BufferedInputStream(this.socket.getInputStream());
-		byte[] buffer = new byte[Receiver.BUFFER_SIZE];
-		try { //Read from socket until EOF, write into file
-			int sum = 0;
-			for (int read = instream.read(buffer); read >= 0;
-					read = instream.read(buffer)){
-				sum += read;
-				outstream.write(buffer, 0, read);
-			}
+		InputStream instream = this.socket.getInputStream();
+		try { //Write each packet from socket into file until EOF
+			long sum = instream.transferTo(outstream);
 			System.out.println("Receiver received " + sum + " bytes.");
 			outstream.flush();
 		} finally {  //Clean up
@@ -83,6 +81,14 @@ public class Receiver {
 				Socket.setPacketSize(val);
 			else if (args[i].equals("-t"))
 				DataLink.setTimeout(val);
+			else if (args[i].equals("-d") && val == 0)
+				PhysicalLayer.setPacing(PhysicalLayer.Pacing.NONE);
+			else if (args[i].equals("-d"))
+				PhysicalLayer.setSendDelay(val);
+			else if (args[i].equals("-r"))
+				Receiver.protocol = (val == 0) 
+						? DataLink.Protocol.GO_BACK_N
+						: DataLink.Protocol.SELECTIVE_REPEAT;
 			else 
 				throw new IllegalArgumentException();
 		}
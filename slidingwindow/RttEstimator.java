@@ -0,0 +1,63 @@
+package slidingwindow;
+import java.util.concurrent.*;
+/**
+ * The RttEstimator class keeps the smoothed round trip time and its
+ * variation for one connection, and derives the retransmission timeout
+ * from them as TCP does (RFC 6298).  Times are in nanoseconds.
+ */
+class RttEstimator {
+	static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(5);
+	static final long MAX_RTO = TimeUnit.SECONDS.toNanos(60);
+	private static final long GRANULARITY = TimerWheel.DEFAULT_TICK;
+	private long srtt = 0; //0 until first sample
+	private long rttvar = 0;
+	private long rto; //Before backoff
+	private int backoffs = 0; //Times rto doubled since frames were acked
+
+	//Create an estimator which uses the given timeout until measured
+	RttEstimator(long initialRto){
+		this.rto = clamp(initialRto);
+	}
+	//Add a measurement - caller must skip frames which were resent
+	synchronized void sample(long rtt){
+		if (rtt < 0)
+			return;
+		if (this.srtt == 0){ //First measurement
+			this.srtt = rtt;
+			this.rttvar = rtt / 2;
+		} else { //rttvar = 3/4 rttvar + 1/4 |srtt - rtt|, srtt = 7/8 srtt + 1/8 rtt
+			this.rttvar += (Math.abs(this.srtt - rtt) - this.rttvar) / 4;
+			this.srtt += (rtt - this.srtt) / 8;
+		}
+		this.rto = clamp(this.srtt + Math.max(GRANULARITY, 4 * this.rttvar));
+		this.backoffs = 0;
+	}
+	//Double timeout after a retransmission
+	synchronized void backoff(){
+		if (getRto() < MAX_RTO)
+			this.backoffs++;
+	}
+	//Frames were acked, so the path is working again - go back to the
+	//measured timeout even if Karn's rule left nothing to sample.  Go back
+	//N resends every frame after a timeout, so waiting for a sample lets
+	//the timeout grow on each loss until it reaches MAX_RTO.
+	synchronized void resetBackoff(){
+		this.backoffs = 0;
+	}
+	//Get current retransmission timeout
+	synchronized long getRto(){
+		return clamp(this.rto << this.backoffs);
+	}
+	//Get smoothed round trip time, or 0 if nothing measured yet
+	synchronized long getSrtt(){
+		return this.srtt;
+	}
+	//Get round trip time variation
+	synchronized long getRttvar(){
+		return this.rttvar;
+	}
+	//Keep timeout within bounds
+	private static long clamp(long rto){
+		return Math.min(MAX_RTO, Math.max(MIN_RTO, rto));
+	}
+}
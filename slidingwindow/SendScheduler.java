@@ -0,0 +1,117 @@
+package slidingwindow;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+/**
+ * The SendScheduler class releases the datagrams of one PhysicalLayer at
+ * the pace chosen with PhysicalLayer.setPacing.  A datagram which may go
+ * now is sent by the caller at once.  Otherwise it is retained in a queue
+ * which the shared TimerWheel drains when it is due, so no thread sleeps
+ * and DataLink never holds its locks while waiting to send.
+ */
+class SendScheduler {
+	//Token bucket holds this much sending time, so short bursts are not
+	//spread out
+	static final long BURST = TimeUnit.MILLISECONDS.toNanos(1);
+	private final PhysicalLayer physicalLayer;
+	private final PhysicalLayer.Pacing pacing;
+	private final long bitsPerSecond; //TOKEN_BUCKET - target rate
+	private final long interval; //DEMO - time between datagrams
+	private final Deque<Queued> queue = new ArrayDeque<Queued>();
+	private final TimerWheel wheel;
+	private final TimerWheel.Timeout timeout;
+	private boolean scheduled = false; //Timeout armed to drain queue
+	//Time the next datagram may be sent, after those queued.  For
+	//TOKEN_BUCKET this can be up to BURST in the past.
+	private long nextSend = System.nanoTime();
+
+	//Pace sends by physicalLayer with the given settings
+	SendScheduler(PhysicalLayer physicalLayer, PhysicalLayer.Pacing pacing,
+			long bitsPerSecond, int sendDelay){
+		this.physicalLayer = physicalLayer;
+		this.pacing = pacing;
+		this.bitsPerSecond = bitsPerSecond;
+		this.interval = TimeUnit.MILLISECONDS.toNanos(sendDelay);
+		this.wheel = (pacing == PhysicalLayer.Pacing.NONE)
+				? null
+				: TimerWheel.getShared();
+		this.timeout = new TimerWheel.Timeout(null, 0){
+			@Override
+			void expire(){
+				drain();
+			}
+		};
+	}
+	/**
+	 * Send datagram when pacing allows.  It is retained if it must wait,
+	 * so the caller releases its own reference on return as usual.
+	 * @param Packet p
+	 * 	The datagram, which must not be changed once sent
+	 * @return long
+	 * 	The System.nanoTime at which the datagram is sent
+	 */
+	long send(Packet p) throws IOException {
+		long now = System.nanoTime();
+		if (this.pacing == PhysicalLayer.Pacing.NONE){
+			this.physicalLayer.transmit(p); //Line rate
+			return now;
+		}
+		synchronized(this){
+			long departure = reserve(p.length(), now);
+			if (departure <= now && this.queue.isEmpty()){
+				this.physicalLayer.transmit(p);
+				return now;
+			}
+			this.queue.add(new Queued(p.retain(), departure));
+			if (!this.scheduled){ //Wake up when the head of queue is due
+				this.scheduled = true;
+				this.wheel.schedule(this.timeout, this.queue.peek().departure);
+			}
+			return departure;
+		}
+	}
+	//Send every queued datagram which is due
+	private void drain(){
+		synchronized(this){
+			this.scheduled = false;
+			long now = System.nanoTime();
+			while (!this.queue.isEmpty() && 
+					this.queue.peek().departure <= now){
+				Packet p = this.queue.poll().data;
+				try {
+					this.physicalLayer.transmit(p);
+				} catch (IOException ioe){
+					ioe.printStackTrace();
+				} finally {
+					p.release();
+				}
+			}
+			if (!this.queue.isEmpty()){
+				this.scheduled = true;
+				this.wheel.schedule(this.timeout, this.queue.peek().departure);
+			}
+		}
+	}
+	//Get time a datagram of the given size sent now can depart, and push 
+	//back next send time to pay for it
+	private long reserve(int bytes, long now){
+		long departure = Math.max(this.nextSend, now);
+		if (this.pacing == PhysicalLayer.Pacing.DEMO)
+			this.nextSend = departure + this.interval;
+		else //Unused tokens are kept for at most one burst
+			this.nextSend = Math.max(this.nextSend, now - SendScheduler.BURST)
+					+ bytes * TimeUnit.SECONDS.toNanos(Byte.SIZE) 
+					/ this.bitsPerSecond;
+		return departure;
+	}
+
+	//A datagram waiting for its departure time
+	private static class Queued {
+		final Packet data; //Retained, released once sent
+		final long departure;
+		Queued(Packet data, long departure){
+			this.data = data;
+			this.departure = departure;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package slidingwindow;
+/**
+ * The SendWindow class holds the frames a DataLink has sent but not yet
+ * had acked, oldest first, in a fixed array used as a ring.  Frames are
+ * only added after the newest and removed from the oldest, so a frame's
+ * place in the ring follows from how far its sequence number is past the
+ * oldest frame's.  Not thread safe - DataLink guards it with its own lock.
+ */
+class SendWindow {
+	private final Frame[] frames;
+	private int head = 0; //Index of oldest frame
+	private int size = 0;
+
+	//Create an empty window which holds up to capacity frames
+	SendWindow(int capacity){
+		if (capacity < 1)
+			throw new IllegalArgumentException("Illegal capacity: " + capacity);
+		this.frames = new Frame[capacity];
+	}
+	//Get number of frames in window
+	int size(){
+		return this.size;
+	}
+	//Determine if window holds no frames
+	boolean isEmpty(){
+		return this.size == 0;
+	}
+	//Get most frames window can hold
+	int capacity(){
+		return this.frames.length;
+	}
+	/**
+	 * Get a frame by its place in the window
+	 * @param int offset
+	 * 	How many frames were sent between the oldest and this one
+	 * @return Frame
+	 * 	The frame, or null if offset is outside the window
+	 */
+	Frame get(int offset){
+		if (offset < 0 || offset >= this.size)
+			return null;
+		return this.frames[(this.head + offset) % this.frames.length];
+	}
+	//Get oldest frame, or null if empty
+	Frame first(){
+		return get(0);
+	}
+	//Add frame after the newest
+	void add(Frame f){
+		if (this.size == this.frames.length)
+			throw new IllegalStateException("Send window full");
+		this.frames[(this.head + this.size) % this.frames.length] = f;
+		this.size++;
+	}
+	//Take oldest frame out of window, or null if empty
+	Frame remove(){
+		if (this.size == 0)
+			return null;
+		Frame f = this.frames[this.head];
+		this.frames[this.head] = null; //Let frame be collected
+		this.head = (this.head + 1) % this.frames.length;
+		this.size--;
+		return f;
+	}
+}
@@ -3,8 +3,9 @@ import java.io.*;
 import java.util.*;
 import javax.swing.*;
 public class Sender {
-	private final static int BUFFER_SIZE = 1024;
 	private final Socket socket;
+	private static DataLink.Protocol protocol = DataLink.Protocol.GO_BACK_N;
+	private static int congestionControl = 0; //None, NewReno, Bbr
 	private final static File DEFAULT_DIR = 
 		new File(System.getProperty("user.dir"));
 	/**
@@ -14,6 +15,8 @@ public class Sender {
 	 */
 	public static void main(String[] args){
 		try {
+			//Send slowly enough to follow log output on screen
+			PhysicalLayer.setPacing(PhysicalLayer.Pacing.DEMO);
 			if (args.length > 0) //Get optional arguments and apply settings
 				parseArgs(args);
 			
@@ -32,7 +35,10 @@ public class Sender {
 			sender.send(file);
 		} catch (IllegalArgumentException iae){
 			System.out.println("Options:\n\t-w\tWindow size\n\t " +
-				"-p\tPacket size (bytes)\n\t-t\tTimeout(ms)");
+				"-p\tPacket size (bytes)\n\t-t\tTimeout(ms)\n\t" +
+				"-d\tSend delay (ms, 0 for none)\n\t" +
+				"-r\tSelective repeat (0/1)\n\t" +
+				"-c\tCongestion control (0 none/1 NewReno/2 BBR)");
 		} catch (IOException ioe){
 			ioe.printStackTrace();
 		}
@@ -42,25 +48,21 @@ public class Sender {
 	 */
 	public Sender() throws IOException {
 		this.socket = new Socket("localhost", Receiver.PORT);
+		this.socket.setProtocol(Sender.protocol);
+		if (Sender.congestionControl == 1)
+			this.socket.setCongestionControl(new NewReno());
+		else if (Sender.congestionControl == 2)
+			this.socket.setCongestionControl(new Bbr());
 	}
 	/**
 	 * Send a file to Receiver using socket connection
 	 */
 	public void send(File file) throws IOException {
-		BufferedInputStream instream = new BufferedInputStream(
-				new FileInputStream(file));
-		BufferedOutputStream outstream = new BufferedOutputStream(
-				this.socket.getOutputStream());
-		byte[] buffer = new byte[Sender.BUFFER_SIZE];
-		try { 
-			for (int read = instream.read(buffer); read >= 0; 
-					read = instream.read(buffer)){
-				outstream.write(buffer, 0, read);
-			}
-			outstream.flush();
+		InputStream instream = new FileInputStream(file);
+		try { //Read file straight into packets
+			this.socket.transferFrom(instream);
 		} finally {
 			instream.close();
-			outstream.close();
 			this.socket.close();
 		}
 	}
@@ -83,6 +85,16 @@ public class Sender {
 				Socket.setPacketSize(val);
 			else if (args[i].equals("-t"))
 				DataLink.setTimeout(val);
+			else if (args[i].equals("-d") && val == 0)
+				PhysicalLayer.setPacing(PhysicalLayer.Pacing.NONE);
+			else if (args[i].equals("-d"))
+				PhysicalLayer.setSendDelay(val);
+			else if (args[i].equals("-r"))
+				Sender.protocol = (val == 0) 
+						? DataLink.Protocol.GO_BACK_N
+						: DataLink.Protocol.SELECTIVE_REPEAT;
+			else if (args[i].equals("-c") && val >= 0 && val <= 2)
+				Sender.congestionControl = val;
 			else 
 				throw new IllegalArgumentException();
 		}
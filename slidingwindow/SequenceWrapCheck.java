@@ -0,0 +1,130 @@
+package slidingwindow;
+import java.io.*;
+import java.util.*;
+/**
+ * The SequenceWrapCheck class proves transfers survive the 32 bit
+ * sequence number wrapping.  Connections start 16 frames short of
+ * 0xFFFFFFFF wrapping to 0, and of 0x7FFFFFFF to 0x80000000 where signed
+ * comparison breaks, so every run sends its window across one of them
+ * while frames are dropped, resent and rebuilt from parity.  Go-Back-N and
+ * selective repeat are each run over the in-memory loopback with and
+ * without forward error correction, and over UDP.  Prints each run and
+ * exits with 1 if any delivered the wrong bytes or stalled.
+ */
+public class SequenceWrapCheck {
+	public final static int PORT = 49150;
+	private final static int[] FIRST_SEQNOS = {0xFFFFFFF0, 0x7FFFFFF0};
+	private final static int BYTES = 4 << 20; //About 4000 frames
+	private final static int WINDOW = 64;
+	private final static int PCT_TO_DROP = 5;
+	private final static int TIMEOUT = 60000; //ms a run may take
+	private static int failures = 0;
+
+	/**
+	 * Program entry point - runs each protocol across the wrap
+	 */
+	public static void main(String[] args){
+		try {
+			DataLink.setTimeout(300); //First frames go before RTT is known
+			PhysicalLayer.setWindowSize(SequenceWrapCheck.WINDOW);
+			PhysicalLayer.setPctToDrop(SequenceWrapCheck.PCT_TO_DROP);
+			PhysicalLayer.getImpairment().setSeed(1);
+			PrintStream console = System.out;
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+			byte[] data = new byte[SequenceWrapCheck.BYTES];
+			new Random(1).nextBytes(data);
+			int port = SequenceWrapCheck.PORT;
+			for (int seqno : SequenceWrapCheck.FIRST_SEQNOS){
+				DataLink.setInitialSeqno(seqno);
+				console.printf("First seqno %08x%n", seqno);
+				for (DataLink.Protocol protocol : DataLink.Protocol.values()){
+					check(console, data, protocol, false, -1);
+					check(console, data, protocol, true, -1);
+					check(console, data, protocol, false, port++);
+				}
+			}
+			console.println(failures == 0 ? "All runs passed"
+					: failures + " runs failed");
+			System.exit(failures == 0 ? 0 : 1);
+		} catch (IOException ioe){
+			ioe.printStackTrace();
+			System.exit(1);
+		}
+	}
+	//Send data over loopback, or UDP if port is not -1, and compare what
+	//arrives.  A run which stalls past TIMEOUT is left behind and failed.
+	private static void check(PrintStream console, byte[] data,
+			DataLink.Protocol protocol, boolean fec, int port)
+			throws IOException {
+		DataLink.setForwardErrorCorrection(fec);
+		long start = System.nanoTime();
+		byte[][] received = new byte[1][];
+		Thread run = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try {
+					received[0] = transfer(data, protocol, port);
+				} catch (IOException ioe){
+					ioe.printStackTrace();
+				}
+			}
+		});
+		run.setDaemon(true);
+		run.start();
+		try {
+			run.join(SequenceWrapCheck.TIMEOUT);
+		} catch (InterruptedException ie){
+			throw new InterruptedIOException();
+		}
+		String result = run.isAlive() ? "FAILED - stalled"
+				: (received[0] == null) ? "FAILED - connection error"
+				: !Arrays.equals(data, received[0])
+				? "FAILED - got " + received[0].length + " bytes"
+				: "ok";
+		if (!result.equals("ok"))
+			failures++;
+		console.printf("%-17s %-8s %-4s %6d ms  %s%n", protocol,
+				(port < 0) ? "loopback" : "UDP", fec ? "FEC" : "",
+				(System.nanoTime() - start) / 1000000, result);
+	}
+	//Write data to one end of a new connection and return what the other
+	//end reads before EOF
+	private static byte[] transfer(byte[] data, DataLink.Protocol protocol,
+			int port) throws IOException {
+		Socket[] ends = (port < 0) ? Socket.pair() : null;
+		ServerSocket server = (port < 0) ? null : new ServerSocket(port);
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		Thread reader = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try {
+					Socket socket = (ends != null) ? ends[1] : server.accept();
+					socket.setProtocol(protocol);
+					InputStream in = socket.getInputStream();
+					byte[] b = new byte[8192];
+					for (int n = in.read(b); n >= 0; n = in.read(b))
+						received.write(b, 0, n);
+				} catch (IOException ioe){
+					ioe.printStackTrace();
+				}
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+
+		Socket socket = (ends != null) ? ends[0]
+				: new Socket("localhost", port);
+		socket.setProtocol(protocol);
+		socket.getOutputStream().write(data);
+		socket.close(); //Flushes, then sends EOF which ends the reader
+		try {
+			reader.join();
+		} catch (InterruptedException ie){
+			throw new InterruptedIOException();
+		}
+		if (server != null)
+			server.close();
+		return received.toByteArray();
+	}
+}
@@ -2,16 +2,30 @@ package slidingwindow;
 import java.io.*;
 /**
  * The ServerSocket class is used to receive incoming Socket connections.
+ * All clients share the one listening port - their datagrams are routed to
+ * a connection per client address.
  */
 public class ServerSocket {
-	private int port;
+	private static final int DEFAULT_BACKLOG = 50;
+	private final Listener listener;
 	/**
 	 * Create a new ServerSocket to listen for incoming connnections
 	 * @param int port
 	 * 	The port number to listen on
 	 */
-	public ServerSocket(int port){
-		this.port = port;
+	public ServerSocket(int port) throws IOException {
+		this(port, ServerSocket.DEFAULT_BACKLOG);
+	}
+	/**
+	 * Create a new ServerSocket to listen for incoming connnections
+	 * @param int port
+	 * 	The port number to listen on
+	 * @param int backlog
+	 * 	The number of connections which can wait to be accepted - new
+	 * 	clients are ignored until one is accepted
+	 */
+	public ServerSocket(int port, int backlog) throws IOException {
+		this.listener = new Listener(port, backlog);
 	}
 	/**
 	 * Listen for incoming connections
@@ -19,6 +33,13 @@ public class ServerSocket {
 	 * 	The socket which provides input and output streams for communication
 	 */
 	public Socket accept() throws IOException {
-		return new Socket(this.port);
+		return this.listener.accept();
+	}
+	/**
+	 * Stop accepting connections.  Connections already accepted keep the
+	 * port open until they are closed.
+	 */
+	public void close(){
+		this.listener.close();
 	}
 }
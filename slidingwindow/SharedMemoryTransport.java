@@ -0,0 +1,462 @@
+package slidingwindow;
+import java.io.*;
+import java.lang.invoke.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+/**
+ * The SharedMemoryTransport class passes frames between two processes on
+ * the same host through a file mapped into both, under /dev/shm where it
+ * exists so the file is only ever in memory.  The file holds two single
+ * producer, single consumer rings, one each way, so neither side makes a
+ * system call per frame.  Each ring has a head the producer advances and
+ * a tail the consumer advances, on their own cache lines, published with
+ * release writes and read with acquire reads.  A frame is stored as its
+ * length(4) then its bytes, padded to 8 bytes, and a length of -1 means
+ * the rest of the ring is unused and the next frame starts at index 0.
+ * <p>
+ * The side which accepts holds a lock on a lock file beside the ring
+ * file, so a second server for the same name fails rather than taking over
+ * the file a client may be opening.  Once it holds the lock, it removes
+ * whatever an earlier server left, creates the file and waits for the
+ * client's first frame.  It then removes the file name - the mapping lives
+ * on until both sides are gone.  The empty lock file is left in place, as
+ * removing it would let two servers each lock a file of that name.  A
+ * frame which does not fit in the ring is dropped, as a datagram would be,
+ * and sent again by the protocol.
+ * <p>
+ * A thread per transport reads frames in place from the mapping.  When
+ * the ring is empty it spins and parks for a little over a millisecond,
+ * then sets its side's sleeping flag in the file and blocks in a Selector.
+ * The sides are joined by a Unix domain socket used only as a doorbell: a
+ * producer which finds the flag set clears it and writes one byte, so a
+ * busy ring costs no system calls and an idle one no wakeups.
+ */
+class SharedMemoryTransport implements Transport {
+	private static final int MAGIC = 0x53575247; //"SWRG"
+	private static final int RING_SIZE = 8 << 20; //Bytes each way
+	private static final int HEADER_SIZE = 128;
+	private static final int RING_HEADER_SIZE = 128;
+	private static final int CACHE_LINE = 64;
+	private static final int ALIGN = Long.BYTES;
+	private static final int SKIP = -1; //Rest of ring unused
+	//Header fields
+	private static final int MAGIC_AT = 0;
+	private static final int CAPACITY_AT = 4;
+	private static final int CLIENT_AT = 8; //Client state
+	private static final int CLOSED_AT = 16; //Bit per side which closed
+	private static final int SLEEPING_AT = 24; //Int per side blocked reading
+	private static final int CONNECT_TIMEOUT = 10000; //ms client waits
+	private static final int SPINS =
+			(Runtime.getRuntime().availableProcessors() > 1) ? 10000 : 0;
+	//Longest park before the reader blocks until the doorbell rings
+	private static final long MAX_IDLE = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final File DIR = new File("/dev/shm").isDirectory()
+			? new File("/dev/shm")
+			: new File(System.getProperty("java.io.tmpdir"));
+	//Atomic access to longs and ints at byte offsets in the mapping
+	private static final VarHandle LONGS =
+			MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.nativeOrder());
+	private static final VarHandle INTS =
+			MethodHandles.byteBufferViewVarHandle(int[].class,
+			ByteOrder.nativeOrder());
+	private final MappedByteBuffer map;
+	private final ByteBuffer view; //Limited to each frame read
+	private final Frame frame = Frame.newView(); //Used by reader only
+	private final int capacity;
+	private final int side; //0 for client, 1 for server
+	//Ring this side writes and ring it reads - offsets of head, tail and
+	//first data byte
+	private final int outHead, outTail, outData;
+	private final int inHead, inTail, inData;
+	private long sendHead; //Only the producer moves it
+	private long readTail; //Only the reader thread moves it
+	private final Object sendLock = new Object(); //One producer at a time
+	private final SocketChannel doorbell; //Wakes a peer blocked reading
+	private final ByteBuffer ring = ByteBuffer.allocate(1); //Under sendLock
+	private final ByteBuffer rung = ByteBuffer.allocate(64); //Reader only
+	private final Selector selector; //Reader blocks here once idle
+	private volatile boolean blocked = false; //Reader is in the Selector
+	//Work handed over from other threads, run between frames
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final Thread thread;
+	private PhysicalLayer physicalLayer; //Frames are delivered to
+	private volatile boolean active = true;
+
+	/**
+	 * Create the file for name and wait for a client to send its first
+	 * frame.  The transport is returned before that frame is delivered.
+	 * @param String name
+	 * 	The name both sides use
+	 * @return SharedMemoryTransport
+	 * 	The server end, to be started with a PhysicalLayer
+	 */
+	static SharedMemoryTransport accept(String name) throws IOException {
+		File file = SharedMemoryTransport.file(name, "");
+		File bell = SharedMemoryTransport.file(name, ".bell");
+		try (FileChannel lock = FileChannel.open(
+				SharedMemoryTransport.file(name, ".lock").toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+			FileLock held;
+			try {
+				held = lock.tryLock(); //Released when lock is closed
+			} catch (OverlappingFileLockException ofle){
+				held = null; //Held by a server in this JVM
+			}
+			if (held == null)
+				throw new IOException("Already in use: " + name);
+			//Only a server which died leaves these while unlocked
+			file.delete();
+			bell.delete();
+			try (ServerSocketChannel bells = ServerSocketChannel.open(
+					StandardProtocolFamily.UNIX)){
+				bells.bind(UnixDomainSocketAddress.of(bell.toPath()));
+				int size = HEADER_SIZE + 2 * (RING_HEADER_SIZE + RING_SIZE);
+				MappedByteBuffer map;
+				try (RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+					raf.setLength(size);
+					map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+							0, size);
+				}
+				map.putInt(CAPACITY_AT, RING_SIZE);
+				INTS.setRelease(map, MAGIC_AT, MAGIC); //Client may now open it
+				SharedMemoryTransport transport = new SharedMemoryTransport(
+						map, 1, name, bells.accept());
+				transport.awaitFirstFrame();
+				return transport;
+			} finally {
+				file.delete(); //Mapping stays - names are not needed now
+				bell.delete();
+			}
+		}
+	}
+	/**
+	 * Open the file a server created for name
+	 * @param String name
+	 * 	The name both sides use
+	 * @return SharedMemoryTransport
+	 * 	The client end, to be started with a PhysicalLayer
+	 */
+	static SharedMemoryTransport connect(String name) throws IOException {
+		File file = SharedMemoryTransport.file(name, "");
+		long deadline = System.nanoTime() +
+				TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT);
+		while (true){
+			if (file.length() >= HEADER_SIZE)
+				try (RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+					MappedByteBuffer map = raf.getChannel().map(
+							FileChannel.MapMode.READ_WRITE, 0, raf.length());
+					if ((int)INTS.getAcquire(map, MAGIC_AT) == MAGIC){
+						if (!INTS.compareAndSet(map, CLIENT_AT, 0, 1))
+							throw new IOException("Already connected: " + name);
+						//Bound before the file was published
+						return new SharedMemoryTransport(map, 0, name,
+								SocketChannel.open(UnixDomainSocketAddress.of(
+								SharedMemoryTransport.file(name, ".bell")
+								.toPath())));
+					}
+				} catch (FileNotFoundException fnfe){
+					//Removed by a server which just accepted - try again
+				}
+			if (System.nanoTime() - deadline > 0)
+				throw new IOException("No server for: " + name);
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException ie){
+				throw new InterruptedIOException();
+			}
+		}
+	}
+	//Get file for name - the rings, or the lock or doorbell by suffix
+	private static File file(String name, String suffix){
+		if (name.isEmpty() || name.indexOf(File.separatorChar) >= 0)
+			throw new IllegalArgumentException("Illegal name: " + name);
+		return new File(SharedMemoryTransport.DIR,
+				"slidingwindow-" + name + suffix);
+	}
+	//Set up rings - the client writes ring 0 and the server ring 1
+	private SharedMemoryTransport(MappedByteBuffer map, int side, String name,
+			SocketChannel doorbell) throws IOException {
+		this.doorbell = doorbell;
+		this.selector = Selector.open();
+		doorbell.configureBlocking(false);
+		doorbell.register(this.selector, SelectionKey.OP_READ);
+		this.map = map;
+		this.side = side;
+		this.capacity = map.getInt(CAPACITY_AT);
+		this.view = map.duplicate();
+		int out = HEADER_SIZE + side * (RING_HEADER_SIZE + this.capacity);
+		int in = HEADER_SIZE + (1 - side) * (RING_HEADER_SIZE + this.capacity);
+		this.outHead = out;
+		this.outTail = out + CACHE_LINE;
+		this.outData = out + RING_HEADER_SIZE;
+		this.inHead = in;
+		this.inTail = in + CACHE_LINE;
+		this.inData = in + RING_HEADER_SIZE;
+		this.sendHead = (long)LONGS.getAcquire(map, this.outHead);
+		this.readTail = (long)LONGS.getAcquire(map, this.inTail);
+		this.thread = EventLoop.newThread(new Runnable(){
+			@Override
+			public void run(){
+				read();
+			}
+		}, "SharedMemory-" + name);
+	}
+	//Start delivering frames to physicalLayer
+	void start(PhysicalLayer physicalLayer){
+		this.physicalLayer = physicalLayer;
+		this.thread.start();
+	}
+	//Wait until the client's first frame is in the ring, skipping anything
+	//which could not open a connection
+	private void awaitFirstFrame() throws IOException {
+		Idle idle = new Idle();
+		while (true){
+			Frame f = peek();
+			if (f != null && f.isValid() && !f.isAck() && 
+					f.getSeqno() == DataLink.initialSeqno)
+				return;
+			if (f != null)
+				next(); //Not a first frame
+			else if (!idle.pause())
+				block();
+			if (Thread.interrupted())
+				throw new InterruptedIOException();
+		}
+	}
+	/**
+	 * Get the window size the client offered on its first frame
+	 * @return int
+	 * 	The offer, or -1 if it made none
+	 */
+	int getOffer(){
+		return peek().getWindow();
+	}
+	/**
+	 * Get the codecs the client announced on its first frame
+	 * @return int
+	 * 	The Codec bits
+	 */
+	int getCodecs(){
+		return peek().getCodecs();
+	}
+	//Copy frame into the ring the peer reads, or drop it if there is no
+	//room or the peer has closed
+	@Override
+	public void send(Packet p){
+		int length = p.length();
+		int record = align(Integer.BYTES + length);
+		synchronized(this.sendLock){
+			if (!this.active || peerClosed())
+				return;
+			long head = this.sendHead;
+			long tail = (long)LONGS.getAcquire(this.map, this.outTail);
+			int index = (int)(head & (this.capacity - 1));
+			int skip = (index + record > this.capacity)
+					? this.capacity - index
+					: 0;
+			if (head + skip + record - tail > this.capacity)
+				return; //Full - lost like a datagram
+			if (skip > 0){
+				this.map.putInt(this.outData + index, SKIP);
+				head += skip;
+				index = 0;
+			}
+			int at = this.outData + index;
+			this.map.put(at + Integer.BYTES, p.decode(), p.offset(), length);
+			this.map.putInt(at, length);
+			this.sendHead = head + record;
+			LONGS.setRelease(this.map, this.outHead, this.sendHead);
+			//Head must be visible before the flag is read, as the peer
+			//sets its flag before it reads the head a last time
+			VarHandle.fullFence();
+			int sleeping = SLEEPING_AT + (1 - this.side) * Integer.BYTES;
+			if ((int)INTS.getVolatile(this.map, sleeping) != 0 &&
+					INTS.compareAndSet(this.map, sleeping, 1, 0))
+				try { //Full socket means the peer is already woken
+					this.doorbell.write(this.ring.clear());
+				} catch (IOException ioe){
+					ioe.printStackTrace();
+				}
+		}
+	}
+	//Run task on the thread which delivers this side's frames
+	@Override
+	public void execute(Runnable task){
+		this.tasks.add(task);
+		if (this.blocked)
+			this.selector.wakeup();
+		else
+			LockSupport.unpark(this.thread);
+	}
+	//Stop reading and tell peer - no frames arrive after return
+	@Override
+	public void close(){
+		synchronized(this.sendLock){
+			this.active = false;
+			int closed;
+			do { //Set this side's bit
+				closed = (int)INTS.getAcquire(this.map, CLOSED_AT);
+			} while (!INTS.compareAndSet(this.map, CLOSED_AT, closed,
+					closed | (1 << this.side)));
+		}
+		if (Thread.currentThread() == this.thread)
+			return; //Reader closes the doorbell as it stops
+		this.selector.wakeup();
+		LockSupport.unpark(this.thread);
+		try {
+			this.thread.join();
+		} catch (InterruptedException ie){
+			ie.printStackTrace();
+		}
+		if (!this.thread.isAlive()) //Never started, or has stopped
+			closeDoorbell();
+	}
+	//Deliver frames and run tasks until closed
+	private void read(){
+		Idle idle = new Idle();
+		try {
+			while (this.active){
+				boolean busy = false;
+				Runnable task;
+				while ((task = this.tasks.poll()) != null){
+					try {
+						task.run();
+					} catch (RuntimeException re){ //Keep reading
+						re.printStackTrace();
+					}
+					busy = true;
+				}
+				Frame f = this.active ? peek() : null;
+				if (f != null){
+					try {
+						this.physicalLayer.deliver(f);
+					} catch (RuntimeException re){ //Drop frame, keep reading
+						re.printStackTrace();
+					}
+					next();
+					busy = true;
+				}
+				if (busy)
+					idle.reset();
+				else if (!idle.pause())
+					try {
+						block();
+					} catch (IOException ioe){ //Poll instead
+						ioe.printStackTrace();
+						LockSupport.parkNanos(SharedMemoryTransport.MAX_IDLE);
+					}
+				if (Thread.interrupted())
+					return;
+			}
+		} finally {
+			closeDoorbell();
+		}
+	}
+	//Sleep in the Selector until the peer rings the doorbell, or a task
+	//or close() wakes it
+	private void block() throws IOException {
+		int sleeping = SLEEPING_AT + this.side * Integer.BYTES;
+		INTS.setVolatile(this.map, sleeping, 1);
+		this.blocked = true;
+		try { //Last look, now the peer and execute() see the flags
+			if ((long)LONGS.getVolatile(this.map, this.inHead) == this.readTail
+					&& this.tasks.isEmpty() && this.active)
+				this.selector.select();
+		} finally {
+			this.blocked = false;
+			INTS.setVolatile(this.map, sleeping, 0);
+		}
+		for (SelectionKey key : this.selector.selectedKeys()){
+			int n;
+			do {
+				n = this.doorbell.read(this.rung.clear());
+			} while (n > 0);
+			if (n < 0) //Peer is gone - only tasks and close() wake us now
+				key.cancel();
+		}
+		this.selector.selectedKeys().clear();
+	}
+	//Close the doorbell and the Selector it is registered with
+	private void closeDoorbell(){
+		try {
+			this.selector.close();
+			this.doorbell.close();
+		} catch (IOException ioe){
+			ioe.printStackTrace();
+		}
+	}
+	//Get a view of the next frame in the ring the peer writes, or null if
+	//it is empty.  The view is valid until next() is called.
+	private Frame peek(){
+		while (true){
+			long head = (long)LONGS.getAcquire(this.map, this.inHead);
+			if (head == this.readTail)
+				return null;
+			int index = (int)(this.readTail & (this.capacity - 1));
+			int length = this.map.getInt(this.inData + index);
+			if (length == SKIP){
+				this.readTail += this.capacity - index;
+				LONGS.setRelease(this.map, this.inTail, this.readTail);
+				continue;
+			}
+			if (length < 0 || length > PhysicalLayer.MAX_PACKET_SIZE ||
+					index + Integer.BYTES + length > this.capacity){
+				this.readTail = head; //Ring corrupted - drop what is in it
+				LONGS.setRelease(this.map, this.inTail, this.readTail);
+				return null;
+			}
+			int at = this.inData + index + Integer.BYTES;
+			this.view.limit(at + length).position(at);
+			return this.frame.wrap(this.view);
+		}
+	}
+	//Free the frame peek() returned for the peer to reuse
+	private void next(){
+		int index = (int)(this.readTail & (this.capacity - 1));
+		int length = this.map.getInt(this.inData + index);
+		this.readTail += align(Integer.BYTES + length);
+		LONGS.setRelease(this.map, this.inTail, this.readTail);
+	}
+	//Determine if the other side has closed
+	private boolean peerClosed(){
+		int closed = (int)INTS.getAcquire(this.map, CLOSED_AT);
+		return (closed & (1 << (1 - this.side))) != 0;
+	}
+	//Round size up to a whole number of ALIGN bytes
+	private static int align(int size){
+		return (size + ALIGN - 1) & -ALIGN;
+	}
+	//Waits while a ring is empty - spins, then yields, then parks for
+	//longer each time up to MAX_IDLE, and then tells the caller to block
+	private static class Idle {
+		private int count = 0;
+		private long sleep = 0;
+		//Returns false once the caller should block instead
+		boolean pause(){
+			if (this.count++ < SharedMemoryTransport.SPINS){
+				Thread.onSpinWait();
+				return true;
+			}
+			if (this.sleep == 0){
+				this.sleep = 1000;
+				Thread.yield();
+				return true;
+			}
+			if (this.sleep > SharedMemoryTransport.MAX_IDLE)
+				return false;
+			LockSupport.parkNanos(this.sleep);
+			this.sleep *= 2;
+			return true;
+		}
+		void reset(){
+			this.count = 0;
+			this.sleep = 0;
+		}
+	}
+}
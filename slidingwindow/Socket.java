@@ -2,34 +2,73 @@ package slidingwindow;
 import java.util.*;
 import java.io.*; 
 import java.net.*; 
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 /**
  * The Socket class is used for network communication using byte streams
  */
 public class Socket {
 	private static int packetSize = 1024;
+	//Packets received ahead of the reader, 0 for one window
+	private static int receiveBufferSize = 0;
+	//Input buffer between packets, shared so draining one allocates nothing
+	private static final byte[] EMPTY = new byte[0];
 	private int bytesRead = 0;
 	private DataLink dataLink;
-	private final List<Packet> inputQueue = new LinkedList<Packet>();
+	//Packets delivered in sequence, waiting to be read
+	private final ReceiveQueue inputQueue;
 	private final byte[] outputBuffer = new byte[packetSize];
 	private int outputIndex = 0;
-	private byte[] inputBuffer = new byte[0];
+	private Packet inputPacket; //Pooled packet held by inputBuffer
+	private byte[] inputBuffer = Socket.EMPTY;
 	private int inputIndex = 0;
-	private volatile boolean eof = false;
+	private int inputLimit = 0; //End of packet in inputBuffer
 	private volatile boolean active = true;
 	private final AtomicBoolean dataLinkFull = new AtomicBoolean(false);
+	//Writer waits here while the data link is full - not on a monitor, so
+	//a virtual thread writing does not pin its carrier
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition dataLinkReady = this.lock.newCondition();
+	//Reader made room in a full input queue - data link can deliver again
+	private final Runnable readerReady = new Runnable(){
+		@Override
+		public void run(){
+			dataLink.readerReady();
+		}
+	};
 	/**
 	 * Set the packet size of data delivered over network
 	 * @param int packetSize
 	 *  The size of the packet in bytes
 	 */	
 	public static void setPacketSize(int packetSize){
-		if (packetSize < 1 || 
-				packetSize + Frame.HEADER_SIZE > PhysicalLayer.MAX_PACKET_SIZE)
+		if (packetSize < 1 || packetSize > Frame.MAX_PAYLOAD)
 			throw new IllegalArgumentException("Invalid packet size");
 
 		Socket.packetSize = packetSize;
 	}
+	/**
+	 * Get the packet size of data delivered over network
+	 * @return int
+	 * 	The size of the packet in bytes
+	 */
+	public static int getPacketSize(){
+		return Socket.packetSize;
+	}
+	/**
+	 * Set how many received packets a new Socket holds for its reader.
+	 * The free space is advertised to the sender, which stops once it is
+	 * used up, so a reader which falls behind bounds the memory its
+	 * connection uses rather than the sender's window.
+	 * @param int packets
+	 * 	The number of packets, 0 (default) to hold one receive window
+	 */
+	public static void setReceiveBufferSize(int packets){
+		if (packets < 0 || packets > PhysicalLayer.MAX_WINDOW_SIZE)
+			throw new IllegalArgumentException("Illegal size: " + packets);
+		Socket.receiveBufferSize = packets;
+	}
 
 	/**
 	 * Create a new Socket object to connect to a ServerSocket
@@ -41,6 +80,9 @@ public class Socket {
 	//Client
 	public Socket(String host, int toPort) throws IOException {
 		InetAddress toAddress = InetAddress.getByName(host);
+		this.inputQueue = new ReceiveQueue(
+				Socket.receiveBuffer(PhysicalLayer.getWindowSize()), 
+				this.readerReady);
 
 		int fromPort = Socket.getRandomPort();
 		while (true)
@@ -50,9 +92,110 @@ public class Socket {
 				return;
 			} catch (BindException be){ /*ignore*/ }
 	}
-	//Server -- called by ServerSocket
-	Socket(int fromPort) throws IOException {
-		this.dataLink = new DataLink(this, fromPort);
+	/**
+	 * Create two Sockets connected to each other in this JVM.  Frames pass
+	 * between them in memory rather than through UDP, but are still paced
+	 * and impaired as PhysicalLayer is set up, so the protocol can run
+	 * between components of one process or be measured on its own.
+	 * @return Socket[]
+	 * 	The client end, then the server end
+	 */
+	public static Socket[] pair() throws IOException {
+		Socket client = new Socket(PhysicalLayer.getWindowSize());
+		client.dataLink = new DataLink(client);
+		Socket server = new Socket(PhysicalLayer.getWindowSize());
+		server.dataLink = new DataLink(server, client.dataLink);
+		return new Socket[]{client, server};
+	}
+	/**
+	 * Wait for a process on the same host to connect with connectShared
+	 * under the same name.  Frames pass through memory both processes map,
+	 * which is far cheaper than UDP through the kernel, and are paced and
+	 * impaired as PhysicalLayer is set up.
+	 * @param String name
+	 * 	The name both sides use, which must not contain a path separator
+	 * @return Socket
+	 * 	The server end
+	 */
+	public static Socket acceptShared(String name) throws IOException {
+		SharedMemoryTransport transport = SharedMemoryTransport.accept(name);
+		int offer = transport.getOffer();
+		Socket server = new Socket(DataLink.offered(offer));
+		server.dataLink = new DataLink(server, transport, offer, 
+				transport.getCodecs());
+		return server;
+	}
+	/**
+	 * Connect to a process on the same host waiting in acceptShared under
+	 * the same name, for up to 10 seconds
+	 * @param String name
+	 * 	The name both sides use, which must not contain a path separator
+	 * @return Socket
+	 * 	The client end
+	 */
+	public static Socket connectShared(String name) throws IOException {
+		SharedMemoryTransport transport = SharedMemoryTransport.connect(name);
+		Socket client = new Socket(PhysicalLayer.getWindowSize());
+		client.dataLink = new DataLink(client, transport);
+		return client;
+	}
+	//Loopback or shared memory -- created before its data link, holding
+	//what a peer with the given window sends
+	private Socket(int window){
+		this.inputQueue = new ReceiveQueue(Socket.receiveBuffer(window), 
+				this.readerReady);
+	}
+	//Server -- created by Listener for a new client, with the window size
+	//it offered or -1 if none, and the codecs it restores
+	Socket(Listener listener, SocketAddress client, int window, int codecs){
+		this.inputQueue = new ReceiveQueue(
+				Socket.receiveBuffer(DataLink.offered(window)), 
+				this.readerReady);
+		this.dataLink = new DataLink(this, listener, client, window, codecs);
+	}
+	/**
+	 * Choose the sliding window protocol used by this connection
+	 * @param DataLink.Protocol protocol
+	 * 	GO_BACK_N (default) or SELECTIVE_REPEAT
+	 */
+	public void setProtocol(DataLink.Protocol protocol){
+		this.dataLink.setProtocol(protocol);
+	}
+	/**
+	 * Choose how this connection reacts to congestion on its path.  Each
+	 * Socket needs its own instance.
+	 * @param CongestionControl congestionControl
+	 * 	NewReno, Bbr, or null (default) to send a full window regardless
+	 */
+	public void setCongestionControl(CongestionControl congestionControl){
+		this.dataLink.setCongestionControl(congestionControl);
+	}
+	/**
+	 * Choose whether bytes flushed to this Socket are sent at once, rather
+	 * than held up to DataLink.setCoalesceDelay to merge with later writes.
+	 * Sending at once suits exchanges of small messages which must not
+	 * wait.
+	 * @param boolean noDelay
+	 * 	True to send every flush at once
+	 */
+	public void setNoDelay(boolean noDelay){
+		this.dataLink.setNoDelay(noDelay);
+	}
+	/**
+	 * Get the smoothed round trip time measured from acked frames
+	 * @return long
+	 * 	The round trip time in microseconds, 0 until first measured
+	 */
+	public long getRoundTripTime(){
+		return TimeUnit.NANOSECONDS.toMicros(this.dataLink.getSrtt());
+	}
+	/**
+	 * Get the time unacked frames currently wait before being resent
+	 * @return long
+	 * 	The retransmission timeout in microseconds
+	 */
+	public long getRetransmitTimeout(){
+		return TimeUnit.NANOSECONDS.toMicros(this.dataLink.getRto());
 	}
 	/**
 	 * Get byte stream to read from socket
@@ -69,12 +212,58 @@ public class Socket {
 			 * 	Returns -1 when stream ends
 			 */
 			public int read(){
-				if (inputIndex == Socket.this.inputBuffer.length)
-					queuePacket(); //Load new packet into buffer
-				if (!Socket.this.active)
+				if (!loadInput())
 					return -1; //Socket has been closed
 				++bytesRead;
-				return inputBuffer[inputIndex++] & 0xffff; //byte to int
+				return inputBuffer[inputIndex++] & 0xff; //byte to int
+			}
+			@Override
+			/*
+			 * Read bytes into array, blocking only until some are available
+			 * @return int
+			 * 	The number of bytes read, or -1 when stream ends
+			 */
+			public int read(byte[] b, int off, int len){
+				if (off < 0 || len < 0 || len > b.length - off)
+					throw new IndexOutOfBoundsException();
+				if (len == 0)
+					return 0;
+				if (!loadInput())
+					return -1;
+				int read = 0;
+				do { //Copy from each packet already received
+					int n = Math.min(len - read, inputLimit - inputIndex);
+					System.arraycopy(inputBuffer, inputIndex, b, off + read, n);
+					inputIndex += n;
+					read += n;
+				} while (read < len && nextPacketReady() && loadInput());
+				bytesRead += read;
+				return read;
+			}
+			@Override
+			/*
+			 * Get number of bytes which can be read without blocking
+			 */
+			public int available(){
+				return (inputLimit - inputIndex) + inputQueue.bytes();
+			}
+			@Override
+			/*
+			 * Write each packet straight to the output stream until the
+			 * stream ends
+			 * @return long
+			 * 	The number of bytes transferred
+			 */
+			public long transferTo(OutputStream out) throws IOException {
+				long transferred = 0;
+				while (loadInput()){
+					int n = inputLimit - inputIndex;
+					out.write(inputBuffer, inputIndex, n);
+					inputIndex += n;
+					transferred += n;
+				}
+				bytesRead += transferred;
+				return transferred;
 			}
 		};
 	}
@@ -97,6 +286,31 @@ public class Socket {
 					toDataLink(); //Deliver full buffer to data link layer
 			}
 			@Override
+			/**
+			 * Write bytes from array - whole packets go straight to the
+			 * data link layer without being copied into the buffer
+			 */
+			public void write(byte[] b, int off, int len){
+				if (off < 0 || len < 0 || len > b.length - off)
+					throw new IndexOutOfBoundsException();
+				int end = off + len;
+				if (outputIndex > 0){ //Top up packet already started
+					int n = Math.min(len, outputBuffer.length - outputIndex);
+					System.arraycopy(b, off, outputBuffer, outputIndex, n);
+					outputIndex += n;
+					off += n;
+					if (outputIndex >= outputBuffer.length)
+						toDataLink();
+				}
+				for (; end - off >= outputBuffer.length; 
+						off += outputBuffer.length)
+					toDataLink(b, off, outputBuffer.length);
+				if (off < end){ //Hold remainder until packet fills
+					System.arraycopy(b, off, outputBuffer, outputIndex, end - off);
+					outputIndex += end - off;
+				}
+			}
+			@Override
 			/**
 			 * Flush remaining bytes in buffer
 			 */
@@ -106,6 +320,28 @@ public class Socket {
 			}
 		};
 	}
+	/**
+	 * Read from a stream straight into packets until it ends, then flush
+	 * @param InputStream in
+	 * 	The stream to send
+	 * @return long
+	 * 	The number of bytes transferred
+	 */
+	public long transferFrom(InputStream in) throws IOException {
+		long transferred = 0;
+		for (int read = in.read(outputBuffer, outputIndex, 
+					outputBuffer.length - outputIndex); read >= 0; 
+				read = in.read(outputBuffer, outputIndex, 
+					outputBuffer.length - outputIndex)){
+			outputIndex += read;
+			transferred += read;
+			if (outputIndex >= outputBuffer.length)
+				toDataLink(); //Deliver full buffer to data link layer
+		}
+		if (outputIndex > 0)
+			toDataLink();
+		return transferred;
+	}
 	/** 
 	 * Flush the stream and close the socket
 	 */
@@ -116,61 +352,90 @@ public class Socket {
 	}
 	//Socket has received EOF message 
 	void eof() {
-		this.eof = true;
-		synchronized(this.inputQueue){
-			this.inputQueue.notifyAll();
-		}
+		this.inputQueue.close(); //Reader sees end once queue is empty
 	}
 	//Send bytes in buffer to data link layer
 	private void toDataLink(){
-		synchronized(this){
+		toDataLink(this.outputBuffer, 0, this.outputIndex);
+		this.outputIndex = 0; //Reset index
+	}
+	//Send range of bytes to data link layer, which copies them into a 
+	//frame before returning
+	private void toDataLink(byte[] data, int offset, int length){
+		this.lock.lock();
+		try {
 			while (this.dataLinkFull.get())
 				try { //Data link cannot currently accept any more data
-					this.wait();
+					this.dataLinkReady.await();
 				} catch (InterruptedException ie){
 					ie.printStackTrace();
 				}
+		} finally {
+			this.lock.unlock();
 		}
-		byte[] payload = Arrays.copyOfRange(this.outputBuffer, 0, outputIndex);
-		Packet p = new Packet(payload);
-		this.dataLink.networkLayerReady(p); //Packet to data link
-		this.outputIndex = 0; //Reset index
+		Packet p = new Packet(data, offset, length);
+		if (length < this.outputBuffer.length) //Flushed before it filled
+			this.dataLink.networkLayerFlushed(p, this.outputBuffer.length);
+		else
+			this.dataLink.networkLayerReady(p); //Packet to data link
 	}
-	//Packet received from data link layer
-	void fromDataLink(Packet p){
-		synchronized(this.inputQueue){
-			this.inputQueue.add(p);
-			this.inputQueue.notifyAll(); //Let reader know data is ready
-		}
+	//Get packets to hold for reader, given the peer's window
+	private static int receiveBuffer(int window){
+		return (Socket.receiveBufferSize > 0) 
+				? Socket.receiveBufferSize 
+				: window;
+	}
+	//Get number of packets data link can deliver before the reader takes
+	//any - advertised to the sender
+	int receiveSpace(){
+		return this.inputQueue.free();
+	}
+	//Packet received from data link layer - returns false if the reader
+	//has no room for it, so the frame must be sent again
+	boolean fromDataLink(Packet p){
+		return this.inputQueue.offer(p);
 	}
 	//Take packet from input queue and put in input buffer for reading
 	private void queuePacket(){
-		synchronized(this.inputQueue){
-			while (inputQueue.size() == 0 && !this.eof){
-				try {
-					inputQueue.wait();
-				} catch (InterruptedException ie){
-					ie.printStackTrace();
-				}
-			}
-			if (this.eof){
-				this.active = false;
-			} else { //Decode packet and set as input buffer
-				Packet p = inputQueue.remove(0);
-				this.inputBuffer = p.decode();
-			}
-
-			inputIndex = 0; //Reset index
+		if (this.inputPacket != null){ //Fully read, so back to the pool
+			this.inputPacket.release();
+			this.inputPacket = null;
+			this.inputBuffer = Socket.EMPTY;
 		}
+		Packet p = this.inputQueue.take(); //Waits for a packet or EOF
+		if (p == null){ //Only stop once queued data is read
+			this.active = false;
+			inputIndex = inputLimit = 0;
+		} else { //Decode packet and set as input buffer
+			this.inputPacket = p;
+			this.inputBuffer = p.decode();
+			inputIndex = p.offset(); //Reset index
+			inputLimit = p.offset() + p.length();
+		}
+	}
+	//Make sure input buffer has unread bytes, waiting for a packet if not
+	//Returns false once the stream has ended
+	private boolean loadInput(){
+		while (inputIndex == inputLimit && this.active)
+			queuePacket(); //Load new packet into buffer - skips empty ones
+		return this.active;
+	}
+	//Determine if a packet can be loaded without waiting
+	private boolean nextPacketReady(){
+		return !this.inputQueue.isEmpty();
 	}
 	//Data link layer calls to disable when its window is full or
 	//to enable when space is available	
 	void disableNetworkLayer(boolean disabled){
 		//If sending was disabled and becomes enabled, wake up sender
-		if (this.dataLinkFull.getAndSet(disabled) && !disabled)
-			synchronized(this){
-				this.notifyAll();
+		if (this.dataLinkFull.getAndSet(disabled) && !disabled){
+			this.lock.lock();
+			try {
+				this.dataLinkReady.signalAll();
+			} finally {
+				this.lock.unlock();
 			}
+		}
 	}
 	//Find port for client socket to listen on
 	private static int getRandomPort() {
@@ -0,0 +1,200 @@
+package slidingwindow;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+/**
+ * The TimerWheel class is a hashed timing wheel shared by the Clocks of
+ * all DataLinks.  Timers hash into a bucket by expiration tick, so starting
+ * and stopping one is constant time no matter how many frames are in
+ * flight.  A single long-lived thread advances the wheel and sleeps until
+ * the next occupied bucket.  Other timed work, such as paced sends, can
+ * use the wheel by overriding Timeout.expire().
+ */
+class TimerWheel implements Runnable {
+	//Default resolution - timers fire at most one tick late, never early
+	static final long DEFAULT_TICK = TimeUnit.MICROSECONDS.toNanos(100);
+	private static final int WHEEL_SIZE = 1024; //Power of 2 for masking
+	private static TimerWheel shared;
+	private final Timeout[] buckets = new Timeout[WHEEL_SIZE]; //List heads
+	private final long tickNanos;
+	private final long startTime = System.nanoTime();
+	private final Thread thread;
+	private long tick = 0; //Next tick to process
+	private long wakeTick = Long.MAX_VALUE; //Tick thread is sleeping until
+	private int pending = 0; //Timeouts currently in buckets
+	//Expired timeouts waiting to fire, oldest first
+	private Timeout dueHead = null;
+	private Timeout dueTail = null;
+
+	/**
+	 * Get the wheel shared by every Clock in this JVM
+	 * @return TimerWheel
+	 * 	The shared wheel, started on first use
+	 */
+	static synchronized TimerWheel getShared(){
+		if (TimerWheel.shared == null)
+			TimerWheel.shared = new TimerWheel(TimerWheel.DEFAULT_TICK);
+		return TimerWheel.shared;
+	}
+	//Create a wheel which advances every tickNanos
+	TimerWheel(long tickNanos){
+		if (tickNanos <= 0)
+			throw new IllegalArgumentException("Illegal tick: " + tickNanos);
+		this.tickNanos = tickNanos;
+		//Daemon, so never keeps the JVM alive
+		this.thread = EventLoop.newThread(this, "TimerWheel");
+		this.thread.start();
+	}
+	//Arm timeout to expire at the given System.nanoTime value
+	void schedule(Timeout t, long deadline){
+		boolean wake;
+		synchronized(this){
+			unlink(t); //Rearm if already running
+			if (this.pending == 0) //Empty wheel can skip idle ticks
+				this.tick = Math.max(this.tick, 
+						(System.nanoTime() - this.startTime) / this.tickNanos);
+			long expires = (deadline - this.startTime + this.tickNanos - 1)
+					/ this.tickNanos;
+			long at = Math.max(expires, this.tick); //Late - next tick
+			t.rounds = (at - this.tick) / TimerWheel.WHEEL_SIZE;
+			t.expired = false;
+			link(t, (int)(at & (TimerWheel.WHEEL_SIZE - 1)));
+			//Thread must wake sooner if it sleeps past this bucket
+			wake = (at < this.wakeTick);
+		}
+		if (wake)
+			LockSupport.unpark(this.thread);
+	}
+	//Disarm timeout if it has not expired yet
+	void cancel(Timeout t){
+		synchronized(this){
+			unlink(t);
+			t.expired = false;
+		}
+	}
+	/**
+	 * Advance the wheel and expire timeouts as their buckets come due
+	 */
+	@Override
+	public void run(){
+		while (true){
+			Timeout due;
+			long sleepUntil;
+			synchronized(this){
+				long now = System.nanoTime() - this.startTime;
+				if (this.pending == 0) //Nothing to expire in skipped ticks
+					this.tick = Math.max(this.tick, now / this.tickNanos);
+				//Process every tick that has fully elapsed
+				while ((this.tick + 1) * this.tickNanos <= now){
+					expire((int)(this.tick & (WHEEL_SIZE - 1)));
+					this.tick++;
+				}
+				due = this.dueHead;
+				this.dueHead = this.dueTail = null;
+				this.wakeTick = nextOccupiedTick();
+				sleepUntil = (this.wakeTick == Long.MAX_VALUE)
+						? Long.MAX_VALUE
+						: (this.wakeTick + 1) * this.tickNanos + this.startTime;
+			}
+			//Fire outside the lock so callbacks can start new timers, in
+			//order of expiration and then of scheduling
+			while (due != null){
+				Timeout next = due.nextDue;
+				due.nextDue = null;
+				fire(due);
+				due = next;
+			}
+			long delay = sleepUntil - System.nanoTime();
+			if (sleepUntil == Long.MAX_VALUE)
+				LockSupport.park(this); //Idle until a timer is scheduled
+			else if (delay > 0)
+				LockSupport.parkNanos(this, delay);
+		}
+	}
+	//Expire one timeout - a failing callback must not stop this thread, as
+	//every timer in the JVM would stop with it
+	private static void fire(Timeout t){
+		try {
+			t.expire();
+		} catch (RuntimeException re){
+			re.printStackTrace();
+		}
+	}
+	//Move expired timeouts from a bucket to the end of the due list
+	private void expire(int index){
+		Timeout due = null; //Newest first in bucket, so reversed here
+		Timeout t = this.buckets[index];
+		while (t != null){
+			Timeout next = t.next;
+			if (t.rounds <= 0){
+				unlink(t);
+				t.expired = true;
+				t.nextDue = due;
+				due = t;
+			} else
+				t.rounds--; //Wait for wheel to come around again
+			t = next;
+		}
+		if (due == null)
+			return;
+		if (this.dueTail == null)
+			this.dueHead = due;
+		else
+			this.dueTail.nextDue = due;
+		while (due.nextDue != null)
+			due = due.nextDue;
+		this.dueTail = due;
+	}
+	//Find the next tick with a timeout in its bucket
+	private long nextOccupiedTick(){
+		if (this.pending == 0)
+			return Long.MAX_VALUE;
+		for (int i = 0; i < TimerWheel.WHEEL_SIZE; i++)
+			if (this.buckets[(int)((this.tick + i) & (WHEEL_SIZE - 1))] != null)
+				return this.tick + i;
+		return Long.MAX_VALUE; //Unreachable while pending > 0
+	}
+	//Add timeout to head of bucket list
+	private void link(Timeout t, int index){
+		t.bucket = index;
+		t.prev = null;
+		t.next = this.buckets[index];
+		if (t.next != null)
+			t.next.prev = t;
+		this.buckets[index] = t;
+		this.pending++;
+	}
+	//Remove timeout from its bucket list if it is in one
+	private void unlink(Timeout t){
+		if (t.bucket < 0)
+			return;
+		if (t.prev != null)
+			t.prev.next = t.next;
+		else
+			this.buckets[t.bucket] = t.next;
+		if (t.next != null)
+			t.next.prev = t.prev;
+		t.prev = t.next = null;
+		t.bucket = -1;
+		this.pending--;
+	}
+	//A timer owned by a Clock, linked into one bucket while armed
+	static class Timeout {
+		final Clock clock; //Null if expire() is overridden
+		int seqno;
+		private Timeout prev;
+		private Timeout next;
+		private Timeout nextDue; //Link in list of expired timeouts
+		private int bucket = -1;
+		private long rounds;
+		//Set by wheel when due, cleared when rearmed or canceled
+		volatile boolean expired = false;
+		Timeout(Clock clock, int seqno){
+			this.clock = clock;
+			this.seqno = seqno;
+		}
+		//Called by wheel thread outside the lock once due
+		void expire(){
+			this.clock.expire(this);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package slidingwindow;
+import java.io.*;
+import java.nio.*;
+/**
+ * The Transport interface carries encoded frames between a PhysicalLayer
+ * and its peer.  Pacing and network impairment happen in PhysicalLayer
+ * before a frame reaches its transport, so a transport only moves bytes.
+ * Frames arriving from the peer are handed to PhysicalLayer.deliver() one
+ * at a time on a single thread, which also runs tasks given to execute().
+ * UdpTransport sends datagrams through a DatagramChannel, and
+ * LoopbackTransport passes them to a peer in the same JVM.
+ */
+interface Transport {
+	/**
+	 * Send an encoded frame to the peer
+	 * @param Packet p
+	 * 	The frame, which must not be changed.  It is only valid during
+	 * 	the call unless the transport retains it, and releases it once
+	 * 	done with it.
+	 */
+	void send(Packet p) throws IOException;
+	/**
+	 * Run a task on the thread which delivers this transport's frames
+	 * @param Runnable task
+	 * 	The task to run
+	 */
+	void execute(Runnable task);
+	/**
+	 * Stop delivering frames and release what the transport holds.  No
+	 * frames are delivered after return.
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,86 @@
+package slidingwindow;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+/**
+ * The UdpTransport class sends frames as UDP datagrams.  A client binds
+ * its own channel, which the shared EventLoop reads.  A server connection
+ * shares the channel of the Listener which accepted it, and the Listener
+ * routes datagrams from its client to its PhysicalLayer.
+ */
+class UdpTransport extends EventLoop.Handler implements Transport {
+	private final PhysicalLayer physicalLayer; //Frames are delivered to
+	private final DatagramChannel channel; //Null for server connections
+	private final EventLoop.Worker worker; //Thread reading channel
+	private final Listener listener; //Routes frames to server connections
+	private final SocketAddress remote; //Peer frames are sent to
+	private volatile boolean active = true;
+
+	//Server - frames from client arrive through listener
+	UdpTransport(PhysicalLayer physicalLayer, Listener listener,
+			SocketAddress client){
+		this.physicalLayer = physicalLayer;
+		this.listener = listener;
+		this.remote = client;
+		this.channel = null;
+		this.worker = null;
+	}
+	//Client - bind fromPort and start reading datagrams from server
+	UdpTransport(PhysicalLayer physicalLayer, int fromPort,
+			SocketAddress server) throws IOException {
+		this.physicalLayer = physicalLayer;
+		this.listener = null;
+		this.remote = server;
+		this.channel = DatagramChannel.open();
+		try { //Throws BindException if the port is already in use
+			this.channel.bind(new InetSocketAddress(fromPort));
+			this.channel.configureBlocking(false);
+		} catch (IOException ioe){
+			this.channel.close();
+			throw ioe; //Send back up to Socket
+		}
+		//Start listening for frames
+		this.worker = EventLoop.getShared().register(this.channel, this);
+	}
+	//Put datagram on the wire
+	@Override
+	public void send(Packet p) throws IOException {
+		ByteBuffer data = p.buffer();
+		data.position(p.offset()).limit(p.offset() + p.length());
+		if (this.listener != null)
+			this.listener.send(data, this.remote);
+		else
+			this.channel.send(data, this.remote);
+	}
+	//Run task on the thread which delivers this connection's frames
+	@Override
+	public void execute(Runnable task){
+		if (this.listener != null)
+			this.listener.execute(task);
+		else
+			this.worker.execute(task);
+	}
+	//Stop receiving and close channel - no frames arrive after return
+	@Override
+	public void close(){
+		this.active = false;
+		if (this.listener != null)
+			this.listener.remove(this.remote);
+		else
+			this.worker.cancel(this.channel);
+	}
+	//Called by EventLoop when channel is readable - receive up to max
+	//datagrams into buffer
+	@Override
+	void receive(ByteBuffer buffer, Frame frame, int max) throws IOException {
+		for (int i = 0; i < max && this.active; i++){
+			buffer.clear();
+			SocketAddress from = this.channel.receive(buffer);
+			if (from == null)
+				return; //Nothing left to read
+			buffer.flip();
+			this.physicalLayer.deliver(frame.wrap(buffer));
+		}
+	}
+}